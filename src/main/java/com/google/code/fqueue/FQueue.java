@@ -17,15 +17,28 @@ package com.google.code.fqueue;
 
 import java.io.IOException;
 import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
-import java.util.Queue;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.code.fqueue.exception.FileFormatException;
+import com.google.code.fqueue.log.Codec;
+import com.google.code.fqueue.log.HotTail;
+import com.google.code.fqueue.log.LogEntity;
+import com.google.code.fqueue.log.QuotaPolicy;
+import com.google.code.fqueue.log.RetentionPolicy;
+import com.google.code.fqueue.log.SegmentBuffer;
+import com.google.code.fqueue.log.SyncPolicy;
 
 /**
  * 基于文件系统的持久化队列
@@ -34,24 +47,61 @@ import com.google.code.fqueue.exception.FileFormatException;
  * @date 2010-8-13
  * @version $Id$
  */
-public class FQueue extends AbstractQueue<byte[]> implements Queue<byte[]>,
+public class FQueue extends AbstractQueue<byte[]> implements BlockingQueue<byte[]>,
 		java.io.Serializable {
 	private static final long serialVersionUID = -5960741434564940154L;
 	private FSQueue fsQueue = null;
 	final Logger log = LoggerFactory.getLogger(FQueue.class);
-	private Lock lock = new ReentrantReadWriteLock().writeLock();
+	/**
+	 * 入队和出队分别加锁，生产者和消费者互不阻塞
+	 */
+	private final ReentrantLock putLock = new ReentrantLock();
+	private final Condition notFull = putLock.newCondition();
+	private final ReentrantLock takeLock = new ReentrantLock();
+	private final Condition notEmpty = takeLock.newCondition();
+	/**
+	 * 正在等待的生产者和消费者数量，没有等待者时不需要去获取对方的锁
+	 */
+	private final AtomicInteger putWaiters = new AtomicInteger();
+	private final AtomicInteger takeWaiters = new AtomicInteger();
+	/**
+	 * 队列容量，分别按条数和积压的字节数限制，默认不限制
+	 */
+	private volatile int capacity = Integer.MAX_VALUE;
+	private volatile long capacityBytes = Long.MAX_VALUE;
+	/**
+	 * 按字节数的限额和超过限额时的处理方式，以及因为限额丢弃的条数
+	 */
+	private volatile QuotaPolicy quotaPolicy = QuotaPolicy.NONE;
+	private final AtomicLong droppedCount = new AtomicLong();
 
 	public FQueue(String path) throws Exception {
 		fsQueue = new FSQueue(path, 1024 * 1024 * 300);
 	}
 
-	public FQueue(String path, int logsize) throws Exception {
+	public FQueue(String path, long logsize) throws Exception {
 		fsQueue = new FSQueue(path, logsize);
 	}
 
+	/**
+	 * @param path
+	 *            队列数据存储的路径
+	 * @param logsize
+	 *            单个数据文件的大小
+	 * @param syncPolicy
+	 *            刷盘策略
+	 * @throws Exception
+	 */
+	public FQueue(String path, long logsize, SyncPolicy syncPolicy) throws Exception {
+		fsQueue = new FSQueue(path, logsize, syncPolicy);
+	}
+
+	/**
+	 * 弱一致的只读遍历，不移除数据，不阻塞读写
+	 */
 	@Override
 	public Iterator<byte[]> iterator() {
-		throw new UnsupportedOperationException("iterator Unsupported now");
+		return fsQueue.iterator();
 	}
 
 	@Override
@@ -59,32 +109,519 @@ public class FQueue extends AbstractQueue<byte[]> implements Queue<byte[]>,
 		return fsQueue.getQueuSize();
 	}
 
+	/**
+	 * @return 积压的数据在数据文件中占用的字节数
+	 */
+	public long sizeInBytes() {
+		return fsQueue.getQueueBytes();
+	}
+
+	/**
+	 * 设置按条数限制的容量，队列满时offer返回false，put阻塞
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive");
+		}
+		this.capacity = capacity;
+		signalAllNotFull();
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * 设置按积压字节数限制的容量，队列满时offer返回false，put阻塞
+	 * 
+	 * @param capacityBytes
+	 */
+	public void setCapacityBytes(long capacityBytes) {
+		if (capacityBytes <= 0) {
+			throw new IllegalArgumentException("capacityBytes must be positive");
+		}
+		this.capacityBytes = capacityBytes;
+		signalAllNotFull();
+	}
+
+	public long getCapacityBytes() {
+		return capacityBytes;
+	}
+
+	/**
+	 * 设置积压字节数的限额，限额同时作为按字节数限制的容量
+	 * 
+	 * @param policy
+	 */
+	public void setQuotaPolicy(QuotaPolicy policy) {
+		this.quotaPolicy = policy;
+		this.capacityBytes = policy.isEnabled() ? policy.getMaxBytes() : Long.MAX_VALUE;
+		signalAllNotFull();
+	}
+
+	public QuotaPolicy getQuotaPolicy() {
+		return quotaPolicy;
+	}
+
+	/**
+	 * @return 队列满时为了写入新数据而丢弃的条数
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * 写入一条数据之后条数或者积压的字节数是否会超过容量，调用时必须持有putLock
+	 * 
+	 * @param incoming
+	 *            要写入的数据占用的字节数
+	 * @return
+	 */
+	private boolean isFull(long incoming) {
+		return size() >= capacity || fsQueue.getQueueBytes() + incoming > capacityBytes;
+	}
+
+	/**
+	 * @param e
+	 * @return 数据写入文件后占用的字节数，包括记录头
+	 */
+	private static long recordBytes(byte[] e) {
+		return e.length + LogEntity.RECORD_HEADER_LENGTH;
+	}
+
 	@Override
 	public boolean offer(byte[] e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		boolean success = false;
+		long sequence = 0;
+		long bytes = recordBytes(e);
+		putLock.lock();
+		try {
+			if (isFull(bytes) == false) {
+				success = enqueue(e);
+				sequence = fsQueue.getWrittenSequence();
+			}
+		} finally {
+			putLock.unlock();
+		}
+		if (success) {
+			signalNotEmpty();
+			awaitDurable(sequence);
+		}
+		return success;
+	}
+
+	@Override
+	public void put(byte[] e) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		long bytes = recordBytes(e);
+		if (bytes > capacityBytes) {
+			throw new IllegalStateException("message larger than capacityBytes:" + e.length);
+		}
+		boolean success;
+		long sequence;
+		putLock.lockInterruptibly();
+		try {
+			putWaiters.incrementAndGet();
+			try {
+				while (isFull(bytes)) {
+					notFull.await();
+				}
+			} finally {
+				putWaiters.decrementAndGet();
+			}
+			success = enqueue(e);
+			sequence = fsQueue.getWrittenSequence();
+		} finally {
+			putLock.unlock();
+		}
+		if (success == false) {
+			throw new IllegalStateException("put message to queue error");
+		}
+		signalNotEmpty();
+		awaitDurable(sequence);
+	}
+
+	@Override
+	public boolean offer(byte[] e, long timeout, TimeUnit unit) throws InterruptedException {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		long bytes = recordBytes(e);
+		if (bytes > capacityBytes) {
+			return false;
+		}
+		long nanos = unit.toNanos(timeout);
+		boolean success;
+		long sequence;
+		putLock.lockInterruptibly();
+		try {
+			putWaiters.incrementAndGet();
+			try {
+				while (isFull(bytes)) {
+					if (nanos <= 0) {
+						return false;
+					}
+					nanos = notFull.awaitNanos(nanos);
+				}
+			} finally {
+				putWaiters.decrementAndGet();
+			}
+			success = enqueue(e);
+			sequence = fsQueue.getWrittenSequence();
+		} finally {
+			putLock.unlock();
+		}
+		if (success) {
+			signalNotEmpty();
+			awaitDurable(sequence);
+		}
+		return success;
+	}
+
+	/**
+	 * 写入数据，队列满时先从头部丢弃最旧的数据腾出空间
+	 * 
+	 * @param e
+	 * @return 数据本身超过按字节数限制的容量，或者头部的数据都被预留、没有可以丢弃的数据时返回false
+	 */
+	public boolean offerDropOldest(byte[] e) {
+		if (e == null) {
+			throw new NullPointerException();
+		}
+		boolean success = false;
+		long sequence = 0;
+		long bytes = recordBytes(e);
+		putLock.lock();
+		try {
+			// 丢弃所有数据也放不下时直接返回，不丢弃数据
+			if (bytes > capacityBytes) {
+				return false;
+			}
+			while (isFull(bytes)) {
+				byte[] b;
+				takeLock.lock();
+				try {
+					b = dequeue();
+				} finally {
+					takeLock.unlock();
+				}
+				if (b == null) {
+					return false;
+				}
+				droppedCount.incrementAndGet();
+			}
+			success = enqueue(e);
+			sequence = fsQueue.getWrittenSequence();
+		} finally {
+			putLock.unlock();
+		}
+		if (success) {
+			signalNotEmpty();
+			awaitDurable(sequence);
+		}
+		return success;
+	}
+
+	/**
+	 * 写入数据，调用时必须持有putLock
+	 * 
+	 * @param e
+	 * @return
+	 */
+	private boolean enqueue(byte[] e) {
 		try {
-			lock.lock();
 			fsQueue.add(e);
-			return true;
 		} catch (IOException e1) {
-			e1.printStackTrace();
+			log.error(e1.getMessage(), e1);
+			return false;
 		} catch (FileFormatException e1) {
-			e1.printStackTrace();
+			log.error(e1.getMessage(), e1);
+			return false;
+		}
+		// 还有空间的话唤醒下一个等待的生产者
+		if (putWaiters.get() > 0 && isFull(0) == false) {
+			notFull.signal();
+		}
+		return true;
+	}
+
+	/**
+	 * 持久化模式下等待写入的数据刷盘，调用时不能持有putLock，其他生产者才能继续写入并共用同一次刷盘
+	 * 
+	 * @param sequence
+	 */
+	private void awaitDurable(long sequence) {
+		if (fsQueue.isDurable()) {
+			fsQueue.awaitSynced(sequence);
+		}
+	}
+
+	/**
+	 * 设置持久化模式。开启后写入方法在数据刷盘之后才返回，并发写入的数据批量刷盘
+	 * 
+	 * @param durable
+	 */
+	public void setDurable(boolean durable) {
+		fsQueue.setDurable(durable);
+	}
+
+	public boolean isDurable() {
+		return fsQueue.isDurable();
+	}
+
+	/**
+	 * 批量入队，整批数据只加一次锁。整批数据的条数和字节数都放得下时才写入
+	 * 
+	 * @param messages
+	 * @return
+	 */
+	public boolean offerAll(Collection<byte[]> messages) {
+		if (messages.isEmpty()) {
+			return true;
+		}
+		List<byte[]> list;
+		if (messages instanceof List) {
+			list = (List<byte[]>) messages;
+		} else {
+			list = new ArrayList<byte[]>(messages);
+		}
+		long bytes = 0;
+		for (int i = 0, len = list.size(); i < len; i++) {
+			byte[] e = list.get(i);
+			if (e == null) {
+				throw new NullPointerException();
+			}
+			bytes += e.length + LogEntity.RECORD_HEADER_LENGTH;
+		}
+		long sequence;
+		putLock.lock();
+		try {
+			if ((long) size() + list.size() > capacity || fsQueue.getQueueBytes() + bytes > capacityBytes) {
+				return false;
+			}
+			fsQueue.addBatch(list);
+			sequence = fsQueue.getWrittenSequence();
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+			return false;
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+			return false;
 		} finally {
-			lock.unlock();
+			putLock.unlock();
 		}
-		return false;
+		signalNotEmpty();
+		awaitDurable(sequence);
+		return true;
 	}
 
 	@Override
-	public byte[] peek() {
-		throw new UnsupportedOperationException("peek Unsupported now");
+	public boolean addAll(Collection<? extends byte[]> c) {
+		if (c == null) {
+			throw new NullPointerException();
+		}
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		if (c.isEmpty()) {
+			return false;
+		}
+		if (offerAll(new ArrayList<byte[]>(c))) {
+			return true;
+		}
+		throw new IllegalStateException("Queue full");
 	}
 
+	/**
+	 * 打开一个命名消费者。每个消费者有自己的读位置，和队列本身的读取互不影响，
+	 * 同一份数据可以被多个消费者各自读取一遍而只写入一次。第一次打开时从队列当前的读位置开始
+	 * 
+	 * @param name
+	 *            只能包含字母、数字和'-'
+	 * @return
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public FSQueue.Consumer openConsumer(String name) throws IOException, FileFormatException {
+		takeLock.lock();
+		try {
+			return fsQueue.openConsumer(name);
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * 删除一个命名消费者
+	 * 
+	 * @param name
+	 */
+	public void removeConsumer(String name) {
+		fsQueue.removeConsumer(name);
+	}
+
+	/**
+	 * 预留下一条数据，超时没有确认时重新投递。读位置在确认之后才推进
+	 * 
+	 * @param timeout
+	 * @param unit
+	 * @return 没有可读的数据时返回null
+	 */
+	public FSQueue.Lease reserve(long timeout, TimeUnit unit) {
+		takeLock.lock();
+		try {
+			return fsQueue.reserve(unit.toMillis(timeout));
+		} finally {
+			takeLock.unlock();
+		}
+	}
+
+	/**
+	 * 确认预留的数据
+	 * 
+	 * @param token
+	 *            预留时返回的Lease.getToken()
+	 * @return 没有这条预留或者已经确认过时返回false
+	 */
+	public boolean ack(long token) {
+		boolean acked = false;
+		takeLock.lock();
+		try {
+			acked = fsQueue.ack(token);
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			takeLock.unlock();
+		}
+		if (acked) {
+			signalNotFull();
+		}
+		return acked;
+	}
+
+	/**
+	 * 把读位置移动到序号为sequence的数据，用于从下游记录的检查点重新读取，或者跳过数据
+	 * 
+	 * @param sequence
+	 *            数据的序号，即队列创建以来在它之前写入的条数
+	 * @return 数据所在的文件已经删除时返回false
+	 */
+	public boolean seek(long sequence) {
+		boolean found = false;
+		takeLock.lock();
+		try {
+			found = fsQueue.seek(sequence);
+			if (found && takeWaiters.get() > 0 && size() > 0) {
+				notEmpty.signalAll();
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			takeLock.unlock();
+		}
+		if (found) {
+			signalAllNotFull();
+		}
+		return found;
+	}
+
+	/**
+	 * 清空队列，只移动读位置并删除读完的文件，耗时和积压的数据量无关
+	 */
 	@Override
-	public byte[] poll() {
+	public void clear() {
+		putLock.lock();
+		takeLock.lock();
 		try {
-			lock.lock();
-			return fsQueue.readNextAndRemove();
+			fsQueue.clear();
+			notFull.signalAll();
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			takeLock.unlock();
+			putLock.unlock();
+		}
+	}
+
+	/**
+	 * 设置读完的数据文件的保留策略，保留的数据可以通过seek重新读取
+	 * 
+	 * @param policy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		fsQueue.setRetentionPolicy(policy);
+	}
+
+	public RetentionPolicy getRetentionPolicy() {
+		return fsQueue.getRetentionPolicy();
+	}
+
+	/**
+	 * 设置之后写入的数据的压缩方式，读取时自动解压
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(Codec codec) {
+		putLock.lock();
+		try {
+			fsQueue.setCodec(codec);
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	public Codec getCodec() {
+		return fsQueue.getCodec();
+	}
+
+	/**
+	 * 设置最近写入的数据在内存中的副本，消费者跟得上时直接从内存读取，数据仍然先写入文件
+	 * 
+	 * @param hotTail
+	 *            为null时只从文件读取
+	 */
+	public void setHotTail(HotTail hotTail) {
+		putLock.lock();
+		try {
+			fsQueue.setHotTail(hotTail);
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	public HotTail getHotTail() {
+		return fsQueue.getHotTail();
+	}
+
+	/**
+	 * @return 下一条读取的数据的序号，可以作为检查点在之后传给seek
+	 */
+	public long getReadSequence() {
+		return fsQueue.getReadSequence();
+	}
+
+	@Override
+	public byte[] peek() {
+		takeLock.lock();
+		try {
+			byte[] b = fsQueue.peek();
+			if (b == null && skipCorruptedTail()) {
+				b = fsQueue.peek();
+			}
+			return b;
 		} catch (IOException e) {
 			log.error(e.getMessage(), e);
 			return null;
@@ -92,13 +629,255 @@ public class FQueue extends AbstractQueue<byte[]> implements Queue<byte[]>,
 			log.error(e.getMessage(), e);
 			return null;
 		} finally {
-			lock.unlock();
+			takeLock.unlock();
+		}
+	}
+
+	@Override
+	public byte[] poll() {
+		byte[] b;
+		takeLock.lock();
+		try {
+			b = dequeue();
+		} finally {
+			takeLock.unlock();
+		}
+		if (b != null) {
+			signalNotFull();
+		}
+		return b;
+	}
+
+	/**
+	 * 和poll一样取出数据，返回指向数据文件映射内存的只读视图，不复制数据。
+	 * 用完之后必须调用Slice.release，否则映射不会被解除
+	 * 
+	 * @return 队列为空时返回null
+	 */
+	public SegmentBuffer.Slice pollSlice() {
+		SegmentBuffer.Slice slice = null;
+		takeLock.lock();
+		try {
+			slice = fsQueue.readNextSliceAndRemove();
+			if (slice == null && skipCorruptedTail()) {
+				slice = fsQueue.readNextSliceAndRemove();
+			}
+			if (slice != null && takeWaiters.get() > 0 && size() > 0) {
+				notEmpty.signal();
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			takeLock.unlock();
+		}
+		if (slice != null) {
+			signalNotFull();
+		}
+		return slice;
+	}
+
+	@Override
+	public byte[] take() throws InterruptedException {
+		byte[] b;
+		takeLock.lockInterruptibly();
+		try {
+			takeWaiters.incrementAndGet();
+			try {
+				while ((b = dequeue()) == null) {
+					notEmpty.await();
+				}
+			} finally {
+				takeWaiters.decrementAndGet();
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		signalNotFull();
+		return b;
+	}
+
+	@Override
+	public byte[] poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long nanos = unit.toNanos(timeout);
+		byte[] b;
+		takeLock.lockInterruptibly();
+		try {
+			takeWaiters.incrementAndGet();
+			try {
+				while ((b = dequeue()) == null) {
+					if (nanos <= 0) {
+						return null;
+					}
+					nanos = notEmpty.awaitNanos(nanos);
+				}
+			} finally {
+				takeWaiters.decrementAndGet();
+			}
+		} finally {
+			takeLock.unlock();
+		}
+		signalNotFull();
+		return b;
+	}
+
+	/**
+	 * 读位置停在正在写入的文件中损坏的数据上时，在没有写入的时候跳过文件中剩余的数据。调用时必须持有takeLock，
+	 * 加锁顺序是先putLock后takeLock，这里只尝试获取putLock，正在写入时返回false，留给之后的读取
+	 * 
+	 * @return 跳过了损坏的数据
+	 */
+	private boolean skipCorruptedTail() {
+		if (fsQueue.isReaderCorrupted() == false || putLock.tryLock() == false) {
+			return false;
+		}
+		try {
+			return fsQueue.skipCorruptedTail();
+		} finally {
+			putLock.unlock();
+		}
+	}
+
+	/**
+	 * 读取数据，调用时必须持有takeLock
+	 * 
+	 * @return
+	 */
+	private byte[] dequeue() {
+		byte[] b = null;
+		try {
+			b = fsQueue.readNextAndRemove();
+			if (b == null && skipCorruptedTail()) {
+				b = fsQueue.readNextAndRemove();
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		}
+		// 还有数据的话唤醒下一个等待的消费者
+		if (b != null && takeWaiters.get() > 0 && size() > 0) {
+			notEmpty.signal();
+		}
+		return b;
+	}
+
+	/**
+	 * 批量出队，整批数据只加一次锁
+	 * 
+	 * @param list
+	 *            存放取出的数据
+	 * @param maxCount
+	 *            最多取出的条数
+	 * @param maxBytes
+	 *            累计字节数达到该值后停止
+	 * @return 取出的条数
+	 */
+	public int drainTo(List<byte[]> list, int maxCount, int maxBytes) {
+		int start = list.size();
+		takeLock.lock();
+		try {
+			if (fsQueue.readBatchAndRemove(list, maxCount, maxBytes) == 0 && skipCorruptedTail()) {
+				fsQueue.readBatchAndRemove(list, maxCount, maxBytes);
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		} catch (FileFormatException e) {
+			log.error(e.getMessage(), e);
+		} finally {
+			takeLock.unlock();
+		}
+		int count = list.size() - start;
+		if (count > 0) {
+			signalNotFull();
+		}
+		return count;
+	}
+
+	@Override
+	public int drainTo(Collection<? super byte[]> c) {
+		return drainTo(c, Integer.MAX_VALUE);
+	}
+
+	@Override
+	public int drainTo(Collection<? super byte[]> c, int maxElements) {
+		if (c == null) {
+			throw new NullPointerException();
+		}
+		if (c == this) {
+			throw new IllegalArgumentException();
+		}
+		List<byte[]> list = new ArrayList<byte[]>();
+		int count = drainTo(list, maxElements, Integer.MAX_VALUE);
+		c.addAll(list);
+		return count;
+	}
+
+	/**
+	 * 只按条数计算剩余容量，按字节数限制的容量无法换算成条数
+	 */
+	@Override
+	public int remainingCapacity() {
+		int max = capacity;
+		if (max == Integer.MAX_VALUE) {
+			return Integer.MAX_VALUE;
+		}
+		return Math.max(max - size(), 0);
+	}
+
+	/**
+	 * 有等待的消费者时唤醒一个，不在putLock内调用
+	 */
+	private void signalNotEmpty() {
+		if (takeWaiters.get() > 0) {
+			takeLock.lock();
+			try {
+				notEmpty.signal();
+			} finally {
+				takeLock.unlock();
+			}
+		}
+	}
+
+	/**
+	 * 有等待的生产者时唤醒一个，不在takeLock内调用。按字节数限制容量时，
+	 * 等待的数据大小不同，被唤醒的生产者可能仍然放不下，唤醒所有生产者各自检查
+	 */
+	private void signalNotFull() {
+		if (putWaiters.get() > 0) {
+			putLock.lock();
+			try {
+				if (capacityBytes == Long.MAX_VALUE) {
+					notFull.signal();
+				} else {
+					notFull.signalAll();
+				}
+			} finally {
+				putLock.unlock();
+			}
+		}
+	}
+
+	private void signalAllNotFull() {
+		putLock.lock();
+		try {
+			notFull.signalAll();
+		} finally {
+			putLock.unlock();
 		}
 	}
 
 	public void close() {
-		if (fsQueue != null) {
-			fsQueue.close();
+		putLock.lock();
+		takeLock.lock();
+		try {
+			if (fsQueue != null) {
+				fsQueue.close();
+			}
+		} finally {
+			takeLock.unlock();
+			putLock.unlock();
 		}
 	}
 }
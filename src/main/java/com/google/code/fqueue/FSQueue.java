@@ -16,18 +16,46 @@
 package com.google.code.fqueue;
 
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.code.fqueue.exception.FileEOFException;
 import com.google.code.fqueue.exception.FileFormatException;
+import com.google.code.fqueue.log.Codec;
+import com.google.code.fqueue.log.ConsumerIndex;
 import com.google.code.fqueue.log.FileRunner;
+import com.google.code.fqueue.log.FlushScheduler;
+import com.google.code.fqueue.log.HotTail;
 import com.google.code.fqueue.log.LogEntity;
 import com.google.code.fqueue.log.LogIndex;
+import com.google.code.fqueue.log.RetentionPolicy;
+import com.google.code.fqueue.log.SegmentBuffer;
+import com.google.code.fqueue.log.SegmentReader;
+import com.google.code.fqueue.log.SparseIndex;
+import com.google.code.fqueue.log.SyncPolicy;
+import com.google.code.fqueue.log.TransitionStatistics;
 
 /**
  * 完成基于文件的先进先出的读写功能
@@ -39,24 +67,101 @@ import com.google.code.fqueue.log.LogIndex;
 public class FSQueue {
 	private static final Log log = LogFactory.getLog(FSQueue.class);
 	public static final String filePrefix = "fqueue";
-	private int fileLimitLength = 1024 * 1024 * 100;
+	private long fileLimitLength = 1024 * 1024 * 100;
 	private static final String dbName = "icqueue.db";
+	private static final String consumerPrefix = "consumer_";
+	private static final Pattern consumerName = Pattern.compile("[A-Za-z0-9\\-]+");
 	private static final String fileSeparator = System.getProperty("file.separator");
+	private static final long retentionSweepInterval = 1000;
+	/**
+	 * 读线程读到已经写满的文件中距离结尾不到这个字节数时，在后台打开下一个文件，并按这个大小分段预读后面的数据。
+	 * 可以通过系统属性fqueue.readahead.bytes设置，0表示不预读
+	 */
+	public static final int READ_AHEAD_BYTES = Integer.getInteger("fqueue.readahead.bytes", 4 * 1024 * 1024);
+	/**
+	 * 预读和预先打开文件的线程，所有队列共用
+	 */
+	private static final ExecutorService readAheadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "fqueue-readahead");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
 	private String path = null;
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
-	
-	private FileRunner deleteFileRunner;
+	/**
+	 * 删除读完的文件和预创建文件，在共用的FlushScheduler中执行
+	 */
+	private FileRunner fileRunner;
 	/**
 	 * 文件操作实例
 	 */
 	private LogIndex db = null;
-	private LogEntity writerHandle = null;
-	private LogEntity readerHandle = null;
+	/**
+	 * 写线程和读线程分别持有各自的锁，两者可能指向同一个文件实例。
+	 * 切换文件时需要判断对方持有的实例，这时使用handoffLock
+	 */
+	private volatile LogEntity writerHandle = null;
+	private volatile LogEntity readerHandle = null;
+	private final Lock handoffLock = new ReentrantLock();
 	/**
 	 * 文件操作位置信息
 	 */
 	private int readerIndex = -1;
 	private int writerIndex = -1;
+	/**
+	 * 刷盘策略，以及上次刷盘后写入的条数和字节数，只由写线程访问
+	 */
+	private final SyncPolicy syncPolicy;
+	private long unsyncedRecords = 0;
+	private long unsyncedBytes = 0;
+	/**
+	 * 批量刷盘(group commit)：写入的数据按索引中64位的累计写入条数编号，等待刷盘的线程中第一个负责刷盘，
+	 * 刷盘期间到达的线程等待下一次刷盘，一次刷盘覆盖之前所有的写入
+	 */
+	private volatile boolean durable = false;
+	private long syncedSequence = 0;
+	private boolean syncing = false;
+	private final Lock syncLock = new ReentrantLock();
+	private final Condition syncDone = syncLock.newCondition();
+	/**
+	 * 命名消费者，以及还没有交给FileRunner删除的最小文件编号。两者的修改都在consumers上同步
+	 */
+	private final Map<String, Consumer> consumers = new ConcurrentHashMap<String, Consumer>();
+	private int deleteFrom;
+	/**
+	 * 预留中的数据，按读取序号排序。leaseWalker从读位置之后读取预留的数据，
+	 * leaseSequence是它下一条数据的序号。没有预留的数据时leaseWalker为null，这些字段都只在读线程中访问
+	 */
+	private final TreeMap<Long, Lease> leases = new TreeMap<Long, Lease>();
+	private final PriorityQueue<Lease> leaseTimeouts = new PriorityQueue<Lease>();
+	private LogWalker leaseWalker;
+	private long leaseSequence;
+	/**
+	 * 写文件的稀疏索引，只在写线程中访问
+	 */
+	private SparseIndex sparseIndex;
+	/**
+	 * 读完的数据文件的保留策略。启用时deleteFrom之后、读位置之前的文件被保留，由后台任务按策略删除
+	 */
+	private volatile RetentionPolicy retentionPolicy = RetentionPolicy.NONE;
+	private final AtomicBoolean sweeperScheduled = new AtomicBoolean(false);
+	private volatile boolean closed = false;
+	/**
+	 * 写入数据的压缩方式
+	 */
+	private volatile Codec codec = Codec.NONE;
+	/**
+	 * 最近写入的数据在内存中的副本，为null时只从文件读取
+	 */
+	private volatile HotTail hotTail;
+	/**
+	 * 读文件中已经提交预读的位置，以及在后台打开的下一个读文件，只在读线程中访问
+	 */
+	private long readAheadPosition;
+	private Future<LogEntity> preopened;
+	private int preopenedFile = -1;
 
 	public FSQueue(String path) throws Exception {
 		this(path, 1024 * 1024 * 150);
@@ -68,11 +173,27 @@ public class FSQueue {
 	 * @param dir
 	 *            队列数据存储的路径
 	 * @param fileLimitLength
-	 *            单个数据文件的大小，不能超过2G
+	 *            单个数据文件的大小，超过2G时分多个窗口映射
+	 * @throws Exception
+	 */
+	public FSQueue(String dir, long fileLimitLength) throws Exception {
+		this(dir, fileLimitLength, SyncPolicy.DEFAULT);
+	}
+
+	/**
+	 * 在指定的目录中，以fileLimitLength为单个数据文件的最大大小限制初始化队列存储，并使用指定的刷盘策略
+	 * 
+	 * @param dir
+	 *            队列数据存储的路径
+	 * @param fileLimitLength
+	 *            单个数据文件的大小，超过2G时分多个窗口映射
+	 * @param syncPolicy
+	 *            刷盘策略
 	 * @throws Exception
 	 */
-	public FSQueue(String dir, int fileLimitLength) throws Exception {
+	public FSQueue(String dir, long fileLimitLength, SyncPolicy syncPolicy) throws Exception {
 		this.fileLimitLength = fileLimitLength;
+		this.syncPolicy = syncPolicy;
 		File fileDir = new File(dir);
 		if (fileDir.exists() == false && fileDir.isDirectory() == false) {
 			if (fileDir.mkdirs() == false) {
@@ -80,21 +201,365 @@ public class FSQueue {
 			}
 		}
 		path = fileDir.getAbsolutePath();
+		fileRunner = new FileRunner(path + fileSeparator + filePrefix + "data_", fileLimitLength);
 		// 打开db
 		db = new LogIndex(path + fileSeparator + dbName);
 		writerIndex = db.getWriterIndex();
 		readerIndex = db.getReaderIndex();
-		writerHandle = createLogEntity(path + fileSeparator + filePrefix + "data_" + writerIndex + ".idb", db,
+		recover();
+		writerHandle = createLogEntity(getFilePath(writerIndex), db,
 				writerIndex);
 		if (readerIndex == writerIndex) {
 			readerHandle = writerHandle;
 		} else {
-			readerHandle = createLogEntity(path + fileSeparator + filePrefix + "data_" + readerIndex + ".idb", db,
+			readerHandle = createLogEntity(getFilePath(readerIndex), db,
 					readerIndex);
 
 		}
-		deleteFileRunner = new FileRunner(path + fileSeparator + filePrefix + "data_", fileLimitLength);
-		executor.execute(deleteFileRunner);
+		if (db.isUpgraded()) {
+			db.putBacklogBytes(countBacklogBytes());
+		}
+		// 还没有写入数据的文件记录第一条数据的序号
+		if (writerHandle.getBaseSequence() < 0 && writerHandle.getWriterPosition() == writerHandle.getDataStart()) {
+			writerHandle.putBaseSequence(db.getWriteCount());
+		}
+		syncedSequence = db.getWriteCount();
+		sparseIndex = openSparseIndex(writerHandle, db.getWriteCount());
+		fileRunner.prepare(writerIndex);
+		loadConsumers();
+	}
+
+	private String getFilePath(int fileNumber) {
+		return path + fileSeparator + filePrefix + "data_" + fileNumber + ".idb";
+	}
+
+	private String getSparseIndexPath(int fileNumber) {
+		return path + fileSeparator + filePrefix + "data_" + fileNumber + SparseIndex.SUFFIX;
+	}
+
+	/**
+	 * 打开写文件的稀疏索引，丢弃指向写位置之后的索引项
+	 * 
+	 * @param handle
+	 * @param sequenceLimit
+	 *            写文件中下一条数据的序号
+	 * @return
+	 * @throws IOException
+	 */
+	private SparseIndex openSparseIndex(LogEntity handle, long sequenceLimit) throws IOException {
+		return new SparseIndex(getSparseIndexPath(handle.getCurrentFileNumber()), handle.getBaseSequence(),
+				handle.getDataStart(), sequenceLimit, handle.getWriterPosition());
+	}
+
+	/**
+	 * 打开目录中已有的消费者索引文件，崩溃恢复后读位置不能超过写位置。同时找到保留下来的最旧的数据文件
+	 * 
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	private void loadConsumers() throws IOException, FileFormatException {
+		int min = readerIndex;
+		String[] names = new File(path).list(new FilenameFilter() {
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.startsWith(consumerPrefix) && name.endsWith(".db");
+			}
+		});
+		for (int i = 0; names != null && i < names.length; i++) {
+			String name = names[i].substring(consumerPrefix.length(), names[i].length() - 3);
+			ConsumerIndex index = new ConsumerIndex(path + fileSeparator + names[i], readerIndex,
+					LogEntity.messageStartPosition, db.getReadCount());
+			if (index.getReaderIndex() > writerIndex
+					|| (index.getReaderIndex() == writerIndex && index.getReaderPosition() > db.getWriterPosition())) {
+				log.warn("consumer " + name + " is ahead of writer, reset to " + writerIndex + ":"
+						+ db.getWriterPosition());
+				index.put(writerIndex, db.getWriterPosition(), db.getWriteCount());
+			}
+			consumers.put(name, new Consumer(name, index));
+			min = Math.min(min, index.getReaderIndex());
+		}
+		// 读完的文件从最旧的开始回收，按保留策略保留下来的和上次退出前还没有回收完的文件都紧挨在最小的读文件之前
+		while (min > 1 && new File(getFilePath(min - 1)).exists()) {
+			min--;
+		}
+		deleteFrom = min;
+	}
+
+	/**
+	 * 打开一个命名消费者，第一次打开时从队列当前的读位置开始读取。需要和队列的读取互斥
+	 * 
+	 * @param name
+	 *            只能包含字母、数字和'-'
+	 * @return
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public Consumer openConsumer(String name) throws IOException, FileFormatException {
+		if (name == null || consumerName.matcher(name).matches() == false) {
+			throw new IllegalArgumentException("illegal consumer name:" + name);
+		}
+		synchronized (consumers) {
+			Consumer consumer = consumers.get(name);
+			if (consumer == null) {
+				LogEntity handle = readerHandle;
+				ConsumerIndex index = new ConsumerIndex(getConsumerPath(name), handle.getCurrentFileNumber(),
+						handle.getReaderPosition(), db.getReadCount());
+				consumer = new Consumer(name, index);
+				consumers.put(name, consumer);
+			}
+			return consumer;
+		}
+	}
+
+	/**
+	 * 删除一个命名消费者，它还没有读取的文件不再为它保留
+	 * 
+	 * @param name
+	 */
+	public void removeConsumer(String name) {
+		synchronized (consumers) {
+			Consumer consumer = consumers.remove(name);
+			if (consumer == null) {
+				return;
+			}
+			consumer.close();
+			consumer.index.delete();
+		}
+		releaseSegments();
+	}
+
+	/**
+	 * @return 所有命名消费者的名称
+	 */
+	public String[] getConsumerNames() {
+		return consumers.keySet().toArray(new String[0]);
+	}
+
+	private String getConsumerPath(String name) {
+		return path + fileSeparator + consumerPrefix + name + ".db";
+	}
+
+	/**
+	 * 队列本身和所有消费者都已经读完的文件交给FileRunner回收，启用了保留策略时只删除超出策略的文件
+	 */
+	private void releaseSegments() {
+		synchronized (consumers) {
+			int min = db.getReaderIndex();
+			for (Consumer consumer : consumers.values()) {
+				min = Math.min(min, consumer.getReaderIndex());
+			}
+			RetentionPolicy policy = retentionPolicy;
+			long now = System.currentTimeMillis();
+			long bytes = 0;
+			if (policy.isEnabled()) {
+				for (int i = deleteFrom; i < min; i++) {
+					bytes += new File(getFilePath(i)).length();
+				}
+			}
+			// 从最旧的文件开始删除，遇到第一个需要保留的文件为止
+			for (; deleteFrom < min; deleteFrom++) {
+				File file = new File(getFilePath(deleteFrom));
+				if (policy.isEnabled() && policy.isOversized(bytes) == false
+						&& policy.isExpired(file.lastModified(), now) == false) {
+					break;
+				}
+				bytes -= file.length();
+				fileRunner.addRecycleFile(getFilePath(deleteFrom));
+				fileRunner.addDeleteFile(getSparseIndexPath(deleteFrom));
+			}
+		}
+	}
+
+	/**
+	 * 设置读完的数据文件的保留策略。保留的文件可以通过seek重新读取，超出策略的文件由后台任务删除
+	 * 
+	 * @param policy
+	 */
+	public void setRetentionPolicy(RetentionPolicy policy) {
+		this.retentionPolicy = policy;
+		releaseSegments();
+		scheduleSweeper();
+	}
+
+	public RetentionPolicy getRetentionPolicy() {
+		return retentionPolicy;
+	}
+
+	/**
+	 * 设置之后写入的数据的压缩方式，已经写入的数据按各自的压缩方式读取
+	 * 
+	 * @param codec
+	 */
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+		writerHandle.setCodec(codec);
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * 设置最近写入的数据在内存中的副本，读线程追上写线程时直接从中取出数据。需要和写入互斥
+	 * 
+	 * @param hotTail
+	 *            为null时只从文件读取
+	 */
+	public void setHotTail(HotTail hotTail) {
+		this.hotTail = hotTail;
+	}
+
+	public HotTail getHotTail() {
+		return hotTail;
+	}
+
+	/**
+	 * @return 保留的已经读完的数据文件数
+	 */
+	public int getRetainedSegments() {
+		synchronized (consumers) {
+			return Math.max(db.getReaderIndex() - deleteFrom, 0);
+		}
+	}
+
+	private void scheduleSweeper() {
+		if (closed == false && retentionPolicy.isEnabled() && sweeperScheduled.compareAndSet(false, true)) {
+			FlushScheduler.schedule(new Runnable() {
+				@Override
+				public void run() {
+					sweeperScheduled.set(false);
+					if (closed == false) {
+						releaseSegments();
+						scheduleSweeper();
+					}
+				}
+			}, retentionSweepInterval);
+		}
+	}
+
+	/**
+	 * 根据各个数据文件的读写位置统计积压的字节数，只在索引文件从旧版本升级时使用
+	 * 
+	 * @return
+	 */
+	private long countBacklogBytes() {
+		if (readerHandle == writerHandle) {
+			return writerHandle.getWriterPosition() - readerHandle.getReaderPosition();
+		}
+		long bytes = Math.max(readerHandle.getEndPosition() - readerHandle.getReaderPosition(), 0);
+		for (int i = readerHandle.getCurrentFileNumber() + 1; i < writerHandle.getCurrentFileNumber(); i++) {
+			long[] header = readHeader(i);
+			if (header != null) {
+				bytes += Math.max(header[1] - LogEntity.getDataStart((int) header[0]), 0);
+			}
+		}
+		return bytes + writerHandle.getWriterPosition() - writerHandle.getDataStart();
+	}
+
+	/**
+	 * 启动时的崩溃恢复。索引中的写位置和计数可能比数据文件超前或者落后，这里从最近一次刷盘的位置开始
+	 * 校验写文件中的数据，丢弃不完整的尾部，并根据写文件之前累计的条数重新计算队列大小。
+	 * 只检查写文件和没有写入结束位置的文件，耗时不随积压的数据量增长
+	 * 
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	private void recover() throws IOException, FileFormatException {
+		long start = System.currentTimeMillis();
+		// 切换文件时中途退出，之前的文件可能还没有写入结束位置
+		for (int i = readerIndex; i < writerIndex; i++) {
+			long[] header = readHeader(i);
+			if (header != null && header[1] == -1) {
+				LogEntity entity = createLogEntity(getFilePath(i), db, i);
+				try {
+					if (entity.hasChecksum() == false) {
+						log.warn("can not recover file " + i + " without checksum");
+						continue;
+					}
+					LogEntity.ScanResult result = entity.scan(entity.getDataStart(), entity.getDataStart());
+					entity.seal(result.end, i + 1);
+					log.warn("seal file " + i + " at position " + result.end + " records " + result.records);
+				} finally {
+					entity.close();
+				}
+			}
+		}
+		LogEntity entity = createLogEntity(getFilePath(writerIndex), db, writerIndex);
+		try {
+			long oldPosition = entity.getWriterPosition();
+			int dataStart = entity.getDataStart();
+			// 检查点不会超过索引中的写位置，否则说明检查点和写位置不是同一时刻的
+			long checkpoint = dataStart;
+			if (db.getCheckpointIndex() == writerIndex) {
+				checkpoint = Math.min(db.getCheckpointPosition(), oldPosition);
+			}
+			long mark = readerIndex == writerIndex ? db.getReaderPosition() : dataStart;
+			LogEntity.ScanResult result = entity.scan(checkpoint, mark);
+			long baseCount;
+			long baseBytes;
+			if (db.isSegmentBaseKnown()) {
+				baseCount = db.getSegmentBaseCount();
+				baseBytes = db.getSegmentBaseBytes();
+			} else {
+				// 旧版本的索引没有记录写文件之前的条数，按索引中的计数推算
+				baseCount = db.getWriteCount() - result.records;
+				baseBytes = db.getWriteBytes() - (result.end - dataStart);
+				db.putSegmentBase(baseCount, baseBytes);
+			}
+			long writeCount = baseCount + result.records;
+			long writeBytes = baseBytes + result.end - dataStart;
+			long readerPosition = db.getReaderPosition();
+			long readCount = Math.min(db.getReadCount(), writeCount);
+			long readBytes = Math.min(db.getReadBytes(), writeBytes);
+			if (readerIndex == writerIndex) {
+				readerPosition = result.markPosition;
+				readCount = baseCount + result.markRecords;
+				readBytes = baseBytes + result.markPosition - dataStart;
+			}
+			long repaired = Math.abs(writeCount - db.getWriteCount()) + Math.abs(readCount - db.getReadCount());
+			if (result.end != oldPosition || repaired > 0 || readerPosition != db.getReaderPosition()) {
+				long oldSize = db.getSize();
+				entity.truncate(result.end);
+				db.recover(result.end, writeCount, writeBytes, readerPosition, readCount, readBytes);
+				db.flush();
+				log.warn("recover queue " + path + " file " + writerIndex + " writerPosition " + oldPosition
+						+ " -> " + result.end + ", size " + oldSize + " -> " + db.getSize() + ", records repaired "
+						+ repaired);
+			}
+		} finally {
+			entity.close();
+		}
+		log.info("recover queue " + path + " in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * 读取数据文件头中的版本、结束位置和第一条数据的序号，文件不存在时返回null
+	 * 
+	 * @param fileNumber
+	 * @return
+	 */
+	private long[] readHeader(int fileNumber) {
+		File file = new File(getFilePath(fileNumber));
+		if (file.exists() == false) {
+			return null;
+		}
+		try {
+			RandomAccessFile raFile = new RandomAccessFile(file, "r");
+			try {
+				raFile.seek(8);
+				int version = raFile.readInt();
+				raFile.seek(16);
+				// 版本3开始结束位置为64位
+				long endPosition = version >= 3 ? raFile.readLong() : raFile.readInt();
+				long baseSequence = version >= 3 ? raFile.readLong() : -1;
+				return new long[] { version, endPosition, baseSequence };
+			} finally {
+				raFile.close();
+			}
+		} catch (IOException e) {
+			log.error("read header of file " + fileNumber + " error", e);
+			return null;
+		}
 	}
 
 	/**
@@ -109,24 +574,61 @@ public class FSQueue {
 	 */
 	private LogEntity createLogEntity(String dbpath, LogIndex db, int fileNumber) throws IOException,
 			FileFormatException {
-		return new LogEntity(dbpath, db, fileNumber, this.fileLimitLength);
+		LogEntity entity = new LogEntity(dbpath, db, fileNumber, this.fileLimitLength, syncPolicy,
+				fileRunner.getCreateLock());
+		entity.setCodec(codec);
+		return entity;
 	}
 
 	/**
 	 * 一个文件的数据写入达到fileLimitLength的时候，滚动到下一个文件实例
 	 * 
+	 * @param pendingCount
+	 *            已经写入但是还没有计入索引的条数
+	 * @param pendingBytes
+	 *            已经写入但是还没有计入索引的字节数
 	 * @throws IOException
 	 * @throws FileFormatException
 	 */
-	private void rotateNextLogWriter() throws IOException, FileFormatException {
+	private void rotateNextLogWriter(int pendingCount, long pendingBytes) throws IOException, FileFormatException {
 		writerIndex = writerIndex + 1;
-		writerHandle.putNextFile(writerIndex);
-		if (readerHandle != writerHandle) {
-			writerHandle.close();
-		}
+		LogEntity previous = writerHandle;
+		previous.putNextFile(writerIndex);
+		// 新文件之前累计写入的数据，包括批量写入中还没有计入索引的部分
+		db.putSegmentBase(db.getWriteCount() + pendingCount, db.getWriteBytes() + pendingBytes);
 		db.putWriterIndex(writerIndex);
-		writerHandle = createLogEntity(path + fileSeparator + filePrefix + "data_" + writerIndex + ".idb", db,
+		// 下一个文件没有准备好时先从FileRunner接过一个备用文件，不在这里创建和分配空间
+		fileRunner.claim(writerIndex);
+		LogEntity next = createLogEntity(getFilePath(writerIndex), db,
 				writerIndex);
+		FileRunner.countRotation(next.isNewFile() == false);
+		fileRunner.prepare(writerIndex);
+		next.putBaseSequence(db.getWriteCount() + pendingCount);
+		sparseIndex.close();
+		sparseIndex = openSparseIndex(next, db.getWriteCount() + pendingCount);
+		// 写满的文件不会再有写入，需要刷盘时在发布新的写实例之前把剩余的数据刷盘，
+		// 这样批量刷盘的线程看到新的写实例时，之前文件中的数据都已经落盘
+		boolean flushPrevious = durable || syncPolicy.getMode() != SyncPolicy.Mode.OS;
+		if (flushPrevious) {
+			previous.flush();
+		}
+		boolean closed = false;
+		handoffLock.lock();
+		try {
+			// 先发布新的写实例，再标记旧文件结束，读线程读到结束位置切换文件时就能看到新的写实例
+			writerHandle = next;
+			previous.putEndPosition();
+			if (readerHandle != previous) {
+				previous.close();
+				closed = true;
+			}
+		} finally {
+			handoffLock.unlock();
+		}
+		// 结束位置在文件头中，单独刷盘
+		if (flushPrevious && closed == false) {
+			previous.flush();
+		}
 	}
 
 	/**
@@ -149,15 +651,95 @@ public class FSQueue {
 	 * @throws FileFormatException
 	 */
 	public void add(byte[] message) throws IOException, FileFormatException {
-		short status = writerHandle.write(message);
+		LogEntity handle = writerHandle;
+		long start = handle.getWriterPosition();
+		short status = handle.write(message);
 		if (status == LogEntity.WRITEFULL) {
-			rotateNextLogWriter();
-			status = writerHandle.write(message);
+			rotateNextLogWriter(0, 0);
+			handle = writerHandle;
+			start = handle.getWriterPosition();
+			status = handle.write(message);
 		}
 		if (status == LogEntity.WRITESUCCESS) {
-			db.incrementSize();
+			long bytes = handle.getWriterPosition() - start;
+			sparseIndex.add(db.getWriteCount(), start);
+			HotTail tail = hotTail;
+			if (tail != null) {
+				tail.put(db.getWriteCount(), handle.getCurrentFileNumber(), start, (int) bytes, message);
+			}
+			db.addWriteCount(1, bytes);
+			afterWrite(handle, 1, bytes);
+		}
+
+	}
+
+	/**
+	 * 向队列存储批量添加数据，数据连续写入，写位置和队列大小在整批写完后只更新一次
+	 * 
+	 * @param messages
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public void addBatch(List<byte[]> messages) throws IOException, FileFormatException {
+		// 先检查，避免写入一部分后才发现有无法写入的数据
+		for (int i = 0, len = messages.size(); i < len; i++) {
+			if (messages.get(i).length + LogEntity.RECORD_HEADER_LENGTH > fileLimitLength
+					- LogEntity.HEADER_LENGTH) {
+				throw new IOException("message too large:" + messages.get(i).length);
+			}
+		}
+		int written = 0;
+		int total = messages.size();
+		long bytes = 0;
+		while (written < total) {
+			LogEntity handle = writerHandle;
+			long start = handle.getWriterPosition();
+			int n = handle.write(messages, written);
+			if (n > 0) {
+				// 批量写入的数据连续存放，每段只在开头记录索引
+				sparseIndex.add(db.getWriteCount() + written, start);
+			}
+			written += n;
+			bytes += handle.getWriterPosition() - start;
+			if (written < total) {
+				rotateNextLogWriter(written, bytes);
+			}
 		}
+		if (total > 0) {
+			db.addWriteCount(total, bytes);
+			afterWrite(writerHandle, total, bytes);
+		}
+	}
 
+	/**
+	 * 写入完成后按刷盘策略决定是否刷盘，在更新索引之后调用，刷盘时写位置和条数一起落盘
+	 * 
+	 * @param handle
+	 * @param records
+	 * @param bytes
+	 */
+	private void afterWrite(LogEntity handle, int records, long bytes) {
+		switch (syncPolicy.getMode()) {
+		case SYNC:
+			handle.flush();
+			break;
+		case RECORDS:
+			unsyncedRecords += records;
+			if (unsyncedRecords >= syncPolicy.getValue()) {
+				unsyncedRecords = 0;
+				handle.flush();
+			}
+			break;
+		case BYTES:
+			unsyncedBytes += bytes;
+			if (unsyncedBytes >= syncPolicy.getValue()) {
+				unsyncedBytes = 0;
+				handle.flush();
+			}
+			break;
+		default:
+			break;
+		}
 	}
 	/**
 	 * 从队列存储中取出最先入队的数据，并移除它
@@ -166,43 +748,1141 @@ public class FSQueue {
 	 * @throws FileFormatException
 	 */
 	public byte[] readNextAndRemove() throws IOException, FileFormatException {
-		byte[] b = null;
-		try {
-			b = readerHandle.readNextAndRemove();
-		} catch (FileEOFException e) {
-			int deleteNum = readerHandle.getCurrentFileNumber();
-			int nextfile = readerHandle.getNextFile();
-			readerHandle.close();
-			FileRunner.addDeleteFile(path + fileSeparator + filePrefix + "data_" + deleteNum + ".idb");
-			// 更新下一次读取的位置和索引
-			db.putReaderPosition(LogEntity.messageStartPosition);
-			db.putReaderIndex(nextfile);
-			if (writerHandle.getCurrentFileNumber() == nextfile) {
-				readerHandle = writerHandle;
-			} else {
-				readerHandle = createLogEntity(path + fileSeparator + filePrefix + "data_" + nextfile + ".idb", db,
-						nextfile);
-			}
+		if (leaseWalker != null) {
+			return readAndAck();
+		}
+		return removeNext();
+	}
+
+	private byte[] removeNext() throws IOException, FileFormatException {
+		HotTail.Entry entry = takeHotTail();
+		if (entry != null) {
+			return entry.getData();
+		}
+		while (true) {
+			LogEntity handle = readerHandle;
+			long start = handle.getReaderPosition();
+			byte[] b;
 			try {
-				b = readerHandle.readNextAndRemove();
-			} catch (FileEOFException e1) {
-				log.error("read new log file FileEOFException error occurred",e1);
+				b = handle.readNextAndRemove();
+			} catch (FileEOFException e) {
+				countSkipped(handle, start, 0);
+				rotateNextLogReader();
+				continue;
 			}
+			if (b != null) {
+				db.addReadCount(1 + handle.takeSkippedRecords(), handle.getReaderPosition() - start);
+				readAhead(handle);
+				return b;
+			}
+			// 跳过损坏的数据之后重新读取
+			if (countSkipped(handle, start, 0) == false) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 读取没有返回数据时调用。先把跳过的无法解压的数据计入已读；读位置处的数据损坏时，跳到之后第一条序号已知的完整数据，
+	 * 跳过的条数由序号相减得到，不需要等待写线程。正在写入的文件中还没有这样的数据时停在损坏的位置，之后的读取再尝试
+	 * 
+	 * @param handle
+	 *            读取的文件
+	 * @param start
+	 *            读取之前的读位置
+	 * @param pendingCount
+	 *            已经读出但还没有计入索引的条数
+	 * @return 跳过了损坏的数据，调用者需要重新读取
+	 */
+	private boolean countSkipped(LogEntity handle, long start, int pendingCount) {
+		int records = handle.takeSkippedRecords();
+		long position = handle.getReaderPosition();
+		if (records > 0) {
+			db.addReadCount(records, position - start);
 		}
-		if (b != null) {
-			db.decrementSize();
+		if (handle.getCorruptedPosition() < 0) {
+			return false;
 		}
-		return b;
+		long[] next = nextKnownRecord(handle.getCurrentFileNumber(), position, handle.getEndPosition(),
+				handle.getNextFile());
+		if (next == null) {
+			return false;
+		}
+		long skipped = 0;
+		if (next[0] >= 0) {
+			skipped = Math.max(0, next[0] - db.getReadCount() - pendingCount);
+		} else {
+			log.warn("base sequence of file " + handle.getNextFile() + " unknown, skipped records not counted");
+		}
+		handle.skipCorrupted(next[1]);
+		db.addReadCount((int) skipped, next[1] - position);
+		return true;
 	}
 
-	public void close() {
-		readerHandle.close();
-		writerHandle.close();
-		deleteFileRunner.exit();
-		executor.shutdown();
+	/**
+	 * 查找损坏的数据之后第一条序号已知的完整数据：稀疏索引中位置在损坏的数据之后的第一项，写线程写完数据之后才追加索引项；
+	 * 没有这样的索引项并且文件已经写满时，返回文件结尾和下一个文件中第一条数据的序号
+	 * 
+	 * @param fileNumber
+	 * @param corrupted
+	 *            损坏的数据的位置
+	 * @param end
+	 *            文件的结束位置，还没有写满时为-1
+	 * @param nextFile
+	 * @return [序号, 位置]，序号未知时为-1；正在写入的文件中还没有这样的数据时返回null
+	 */
+	private long[] nextKnownRecord(int fileNumber, long corrupted, long end, int nextFile) {
+		long[] entry = SparseIndex.higher(getSparseIndexPath(fileNumber), corrupted);
+		if (entry != null && (end < 0 || entry[1] < end)) {
+			return entry;
+		}
+		if (end < 0) {
+			return null;
+		}
+		long[] header = readHeader(nextFile);
+		return new long[] { header == null ? -1 : header[2], end };
 	}
 
-	public int getQueuSize() {
-		return db.getSize();
+	/**
+	 * 读位置停在正在写入的文件中损坏的数据上
+	 *
+	 * @return
+	 */
+	public boolean isReaderCorrupted() {
+		return readerHandle.getCorruptedPosition() >= 0;
+	}
+
+	/**
+	 * 读位置停在正在写入的文件中损坏的数据上、之后还没有序号已知的数据时，跳过文件中剩余的数据。
+	 * 调用者必须同时持有写锁和读锁：没有写入时写位置之前的数据都已经计入写入条数，跳过的条数就是还没有读取的条数
+	 *
+	 * @return 跳过了损坏的数据，调用者需要重新读取
+	 */
+	public boolean skipCorruptedTail() {
+		LogEntity handle = readerHandle;
+		long position = handle.getCorruptedPosition();
+		if (position < 0 || handle != writerHandle) {
+			return false;
+		}
+		long end = handle.getWriterPosition();
+		long skipped = Math.max(0, db.getWriteCount() - db.getReadCount());
+		handle.skipCorrupted(end);
+		db.addReadCount((int) skipped, end - position);
+		return true;
+	}
+
+	/**
+	 * 读取已经写满的文件时，在后台预读读位置之后READ_AHEAD_BYTES字节的数据，读线程访问时不再等待磁盘；
+	 * 距离文件结尾不到READ_AHEAD_BYTES时在后台打开下一个文件，切换文件时不再同步打开和映射。
+	 * 正在写入的文件中的数据刚刚写入，还在page cache中，不需要预读
+	 * 
+	 * @param handle
+	 */
+	private void readAhead(final LogEntity handle) {
+		long end = handle.getEndPosition();
+		if (READ_AHEAD_BYTES <= 0 || end == -1) {
+			return;
+		}
+		long position = handle.getReaderPosition();
+		if (position + READ_AHEAD_BYTES > readAheadPosition && readAheadPosition < end) {
+			final long from = Math.max(readAheadPosition, position);
+			final long to = Math.min(end, from + READ_AHEAD_BYTES);
+			readAheadPosition = to;
+			readAheadExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					handle.readAhead(from, to);
+				}
+			});
+		}
+		int next = handle.getNextFile();
+		if (end - position <= READ_AHEAD_BYTES && preopened == null && next > 0) {
+			preopen(next);
+		}
+	}
+
+	/**
+	 * 在后台打开下一个读文件并预读开头的数据。写线程还在写这个文件时不需要打开，切换时直接使用写实例
+	 * 
+	 * @param fileNumber
+	 */
+	private void preopen(final int fileNumber) {
+		preopenedFile = fileNumber;
+		preopened = readAheadExecutor.submit(new Callable<LogEntity>() {
+			@Override
+			public LogEntity call() throws Exception {
+				handoffLock.lock();
+				try {
+					// 写线程已经离开的文件在切换写实例时已经标记结束，之后不会再修改
+					if (closed || writerHandle.getCurrentFileNumber() == fileNumber) {
+						return null;
+					}
+				} finally {
+					handoffLock.unlock();
+				}
+				String path = getFilePath(fileNumber);
+				if (new File(path).exists() == false) {
+					return null;
+				}
+				LogEntity next = createLogEntity(path, db, fileNumber);
+				next.prepareRead(READ_AHEAD_BYTES);
+				return next;
+			}
+		});
+	}
+
+	/**
+	 * 取出在后台打开的fileNumber文件，打开的不是这个文件时关闭它。读线程持有takeLock，不等待后台任务：
+	 * 预读线程被所有队列的预读任务占用时，还没有完成的打开任务直接放弃，由调用者同步打开
+	 * 
+	 * @param fileNumber
+	 * @return 没有打开、还没有打开完成或者打开失败时返回null
+	 */
+	private LogEntity takePreopened(int fileNumber) {
+		Future<LogEntity> future = preopened;
+		if (future == null) {
+			return null;
+		}
+		preopened = null;
+		if (future.isDone() == false) {
+			// 还没有开始的任务直接取消，已经开始的任务完成后由预读线程关闭打开的文件
+			if (future.cancel(false) == false) {
+				closeWhenDone(future);
+			}
+			return null;
+		}
+		LogEntity entity = null;
+		try {
+			entity = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			log.warn("preopen file " + preopenedFile + " error", e.getCause());
+			return null;
+		}
+		if (entity != null && preopenedFile != fileNumber) {
+			entity.close();
+			return null;
+		}
+		return entity;
+	}
+
+	private void closeWhenDone(final Future<LogEntity> future) {
+		readAheadExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					LogEntity entity = future.get();
+					if (entity != null) {
+						entity.close();
+					}
+				} catch (Exception e) {
+					// 打开失败，不需要关闭
+				}
+			}
+		});
+	}
+
+	/**
+	 * 读位置被移动到别处时放弃后台打开的文件
+	 */
+	private void discardPreopened() {
+		LogEntity entity = takePreopened(-1);
+		if (entity != null) {
+			entity.close();
+		}
+		readAheadPosition = 0;
+	}
+
+	/**
+	 * 读位置处的数据在内存中有副本时取出它，并把文件中的读位置移到它之后。批量写入的数据、
+	 * 读线程落后超过环的大小或者需要切换文件时返回null，由调用者从文件读取
+	 * 
+	 * @return
+	 */
+	private HotTail.Entry takeHotTail() {
+		HotTail tail = hotTail;
+		if (tail == null) {
+			return null;
+		}
+		LogEntity handle = readerHandle;
+		long position = handle.getReaderPosition();
+		HotTail.Entry entry = tail.take(db.getReadCount(), handle.getCurrentFileNumber(), position);
+		if (entry == null || handle.skip(position, entry.getLength()) == false) {
+			return null;
+		}
+		db.addReadCount(1, entry.getLength());
+		return entry;
+	}
+
+	/**
+	 * 取出最先入队的数据并移除它，返回指向映射内存的只读视图，不复制数据。用完之后必须调用Slice.release
+	 * 
+	 * @return
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public SegmentBuffer.Slice readNextSliceAndRemove() throws IOException, FileFormatException {
+		if (leaseWalker != null) {
+			byte[] b = readAndAck();
+			return b == null ? null : SegmentBuffer.Slice.wrap(b);
+		}
+		HotTail.Entry entry = takeHotTail();
+		if (entry != null) {
+			return SegmentBuffer.Slice.wrap(entry.getData());
+		}
+		while (true) {
+			LogEntity handle = readerHandle;
+			long start = handle.getReaderPosition();
+			SegmentBuffer.Slice slice;
+			try {
+				slice = handle.readNextSliceAndRemove();
+			} catch (FileEOFException e) {
+				countSkipped(handle, start, 0);
+				rotateNextLogReader();
+				continue;
+			}
+			if (slice != null) {
+				db.addReadCount(1 + handle.takeSkippedRecords(), handle.getReaderPosition() - start);
+				readAhead(handle);
+				return slice;
+			}
+			if (countSkipped(handle, start, 0) == false) {
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * 读取最先入队的数据，但不移除它。需要和读取互斥
+	 * 
+	 * @return
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public byte[] peek() throws IOException, FileFormatException {
+		if (leaseWalker != null) {
+			Lease expired = leaseTimeouts.peek();
+			if (expired != null && expired.acked == false && expired.deadline <= System.currentTimeMillis()) {
+				return expired.data;
+			}
+			return leaseWalker.read(false);
+		}
+		while (true) {
+			LogEntity handle = readerHandle;
+			long start = handle.getReaderPosition();
+			byte[] b;
+			try {
+				b = handle.peekNext();
+			} catch (FileEOFException e) {
+				countSkipped(handle, start, 0);
+				// 当前文件已经读完，和读取一样切换到下一个文件
+				rotateNextLogReader();
+				continue;
+			}
+			// 读到损坏的数据时和读取一样跳过
+			boolean skipped = countSkipped(handle, start, 0);
+			if (b != null || skipped == false) {
+				return b;
+			}
+		}
+	}
+
+	/**
+	 * 从当前读位置开始依次遍历之后的数据，不移除数据，也不和读写线程互斥。
+	 * 遍历是弱一致的：开始之后写入的数据可能遍历到，也可能遍历不到；已经读完删除的文件会被跳过。
+	 * 数据文件以只读方式映射，遍历到末尾时释放
+	 * 
+	 * @return
+	 */
+	public Iterator<byte[]> iterator() {
+		return new QueueIterator();
+	}
+
+	private class QueueIterator implements Iterator<byte[]> {
+		private final LogWalker walker;
+		private byte[] next;
+		private boolean finished = false;
+
+		QueueIterator() {
+			LogEntity handle = readerHandle;
+			walker = new LogWalker(handle.getCurrentFileNumber(), handle.getReaderPosition());
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (next == null && finished == false) {
+				next = walker.read(true);
+				if (next == null) {
+					finished = true;
+					walker.close();
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public byte[] next() {
+			if (hasNext() == false) {
+				throw new NoSuchElementException();
+			}
+			byte[] b = next;
+			next = null;
+			return b;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException("remove Unsupported now");
+		}
+	}
+
+	/**
+	 * 从指定位置开始以只读映射按顺序读取数据，读完一个文件后沿着文件头中的下一个文件编号继续，
+	 * 不修改数据文件和索引。遍历和命名消费者共用
+	 */
+	private class LogWalker {
+		private int fileNumber;
+		private long position;
+		private SegmentReader reader;
+		/**
+		 * 上一次读到的数据在文件中占用的长度
+		 */
+		private int lastLength;
+		/**
+		 * 跳过的无法解压的数据条数，还没有被调用者计入
+		 */
+		private long skipped;
+		/**
+		 * 跳过损坏的数据之后，当前位置的数据的序号，没有跳过或者序号未知时为-1
+		 */
+		private long resync = -1;
+		private long corruptedPosition = -1;
+
+		LogWalker(int fileNumber, long position) {
+			this.fileNumber = fileNumber;
+			this.position = position;
+		}
+
+		/**
+		 * 读取当前位置的数据
+		 * 
+		 * @param advance
+		 *            是否移动到下一条数据
+		 * @return 没有可读的数据时返回null
+		 */
+		byte[] read(boolean advance) {
+			while (true) {
+				if (reader == null && open() == false) {
+					return null;
+				}
+				long end = reader.getEndPosition();
+				long limit = end;
+				if (end < 0) {
+					LogEntity writer = writerHandle;
+					if (writer.getCurrentFileNumber() != fileNumber) {
+						// 写线程刚切换到下一个文件，还没有写入结束位置
+						end = reader.getEndPosition();
+						limit = end >= 0 ? end : position;
+					} else {
+						limit = writer.getWriterPosition();
+					}
+				}
+				if (position < limit) {
+					byte[] b = reader.read(position, limit);
+					if (b == null) {
+						// 和读线程一样跳到之后第一条序号已知的数据，正在写入的文件中还没有时停在这里
+						long[] next = nextKnownRecord(fileNumber, position, end, reader.getNextFile());
+						if (next == null) {
+							if (corruptedPosition != position) {
+								corruptedPosition = position;
+								log.error("corrupted record in file " + fileNumber + " at position " + position);
+							}
+							return null;
+						}
+						log.error("skip corrupted records in file " + fileNumber + " from " + position + " to "
+								+ next[1]);
+						position = next[1];
+						resync = next[0];
+						skipped = 0;
+						continue;
+					}
+					lastLength = b.length + reader.getRecordHeaderLength();
+					byte[] data = reader.decode(position, b);
+					if (data == null) {
+						// 数据通过了校验，长度可信，只跳过这一条
+						position += lastLength;
+						skipped++;
+						continue;
+					}
+					if (advance) {
+						position += lastLength;
+					}
+					return data;
+				}
+				if (end >= 0 && reader.getNextFile() > 0) {
+					fileNumber = reader.getNextFile();
+					position = 0;
+					reader.close();
+					reader = null;
+					continue;
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * 打开fileNumber对应的文件，文件已经被读完删除时从当前的读文件继续
+		 */
+		private boolean open() {
+			try {
+				reader = new SegmentReader(getFilePath(fileNumber), fileNumber);
+			} catch (Exception e) {
+				LogEntity handle = readerHandle;
+				if (handle.getCurrentFileNumber() <= fileNumber) {
+					return false;
+				}
+				fileNumber = handle.getCurrentFileNumber();
+				position = handle.getReaderPosition();
+				try {
+					reader = new SegmentReader(getFilePath(fileNumber), fileNumber);
+				} catch (Exception e1) {
+					return false;
+				}
+			}
+			position = Math.max(position, reader.getDataStart());
+			return true;
+		}
+
+		/**
+		 * 跳过read(false)读到的数据
+		 */
+		void skip() {
+			position += lastLength;
+		}
+
+		/**
+		 * 按上次调用之后跳过的数据修正已经读取的条数
+		 * 
+		 * @param readCount
+		 *            调用者记录的已经读取的条数
+		 * @return 当前位置之前的数据条数
+		 */
+		long takeReadCount(long readCount) {
+			long n = (resync >= 0 ? resync : readCount) + skipped;
+			resync = -1;
+			skipped = 0;
+			return n;
+		}
+
+		int getFileNumber() {
+			return fileNumber;
+		}
+
+		long getPosition() {
+			return position;
+		}
+
+		void close() {
+			if (reader != null) {
+				reader.close();
+				reader = null;
+			}
+		}
+	}
+
+	/**
+	 * 命名消费者。每个消费者在自己的索引文件中记录读位置，和队列本身的读取以及其他消费者互不影响，
+	 * 共用同一份数据文件。数据文件在队列本身和所有消费者都读完之后才删除。
+	 * 同一个消费者的方法之间互斥，可以在多个线程中使用
+	 */
+	public class Consumer {
+		private final String name;
+		private final ConsumerIndex index;
+		private final LogWalker walker;
+		private byte[] peeked;
+
+		private Consumer(String name, ConsumerIndex index) {
+			this.name = name;
+			this.index = index;
+			this.walker = new LogWalker(index.getReaderIndex(), index.getReaderPosition());
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * 取出下一条数据并移动读位置
+		 * 
+		 * @return 没有可读的数据时返回null
+		 */
+		public synchronized byte[] poll() {
+			int fileNumber = walker.getFileNumber();
+			byte[] b = peeked;
+			if (b != null) {
+				peeked = null;
+				walker.skip();
+			} else {
+				b = walker.read(true);
+			}
+			if (b != null) {
+				index.put(walker.getFileNumber(), walker.getPosition(), walker.takeReadCount(index.getReadCount()) + 1);
+			} else if (walker.getFileNumber() != fileNumber) {
+				index.put(walker.getFileNumber(), walker.getPosition(), walker.takeReadCount(index.getReadCount()));
+			}
+			if (walker.getFileNumber() != fileNumber) {
+				releaseSegments();
+			}
+			return b;
+		}
+
+		/**
+		 * 读取下一条数据但不移动读位置
+		 */
+		public synchronized byte[] peek() {
+			if (peeked == null) {
+				peeked = walker.read(false);
+			}
+			return peeked;
+		}
+
+		/**
+		 * @return 消费者还没有读取的条数
+		 */
+		public long size() {
+			return Math.max(db.getWriteCount() - index.getReadCount(), 0);
+		}
+
+		int getReaderIndex() {
+			return index.getReaderIndex();
+		}
+
+		synchronized void close() {
+			walker.close();
+			index.close();
+		}
+	}
+
+	/**
+	 * 预留下一条数据。预留的数据在timeout毫秒内不会再被读取，超时还没有确认时重新投递给下一个预留或者读取的调用者。
+	 * 读位置只在最前面的连续一段预留都确认之后才推进，进程重启后所有没有推进过的数据都会重新投递
+	 * 
+	 * @param timeout
+	 *            预留的超时时间，单位毫秒
+	 * @return 没有可读的数据时返回null
+	 */
+	public Lease reserve(long timeout) {
+		long now = System.currentTimeMillis();
+		Lease lease = pollExpired(now);
+		if (lease != null) {
+			lease.deadline = now + timeout;
+			lease.deliveries++;
+			leaseTimeouts.add(lease);
+			return lease;
+		}
+		if (leaseWalker == null) {
+			LogEntity handle = readerHandle;
+			leaseWalker = new LogWalker(handle.getCurrentFileNumber(), handle.getReaderPosition());
+			leaseSequence = db.getReadCount();
+		}
+		byte[] b = leaseWalker.read(true);
+		// 跳过的数据也占用序号，令牌和数据的序号保持一致
+		leaseSequence = leaseWalker.takeReadCount(leaseSequence);
+		if (b == null) {
+			if (leases.isEmpty()) {
+				closeLeases();
+			}
+			return null;
+		}
+		lease = new Lease(leaseSequence++, b, now + timeout);
+		leases.put(lease.sequence, lease);
+		leaseTimeouts.add(lease);
+		return lease;
+	}
+
+	/**
+	 * 确认预留的数据，确认之后不会再投递。超时重新投递之后原来的调用者仍然可以确认
+	 * 
+	 * @param token
+	 *            预留时返回的Lease.getToken()
+	 * @return 没有这条预留或者已经确认过时返回false
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public boolean ack(long token) throws IOException, FileFormatException {
+		Lease lease = leases.get(token);
+		if (lease == null || lease.acked) {
+			return false;
+		}
+		lease.acked = true;
+		lease.data = null;
+		advanceAcked();
+		return true;
+	}
+
+	/**
+	 * @return 预留了还没有确认的条数
+	 */
+	public int getLeaseCount() {
+		int count = 0;
+		for (Lease lease : leases.values()) {
+			if (lease.acked == false) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 有预留的数据时的读取：先取超时的预留，再取还没有预留的数据，取出即确认
+	 */
+	private byte[] readAndAck() throws IOException, FileFormatException {
+		Lease lease = pollExpired(System.currentTimeMillis());
+		byte[] b;
+		if (lease != null) {
+			b = lease.data;
+		} else {
+			b = leaseWalker.read(true);
+			leaseSequence = leaseWalker.takeReadCount(leaseSequence);
+			if (b == null) {
+				return null;
+			}
+			lease = new Lease(leaseSequence++, null, 0);
+			leases.put(lease.sequence, lease);
+		}
+		lease.acked = true;
+		lease.data = null;
+		advanceAcked();
+		return b;
+	}
+
+	/**
+	 * 取出一条已经超时并且还没有确认的预留，已经确认的预留在这里顺便丢弃
+	 */
+	private Lease pollExpired(long now) {
+		Lease lease;
+		while ((lease = leaseTimeouts.peek()) != null && (lease.acked || lease.deadline <= now)) {
+			leaseTimeouts.poll();
+			if (lease.acked == false) {
+				return lease;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * 把读位置推进到第一条没有确认的预留之前。预留的数据在读位置之后，所在的文件不会被删除，
+	 * 这里重新读取只是从映射中复制，不会再读磁盘
+	 */
+	private void advanceAcked() throws IOException, FileFormatException {
+		while (leases.isEmpty() == false && leases.firstEntry().getValue().acked) {
+			leases.pollFirstEntry();
+			if (removeNext() == null) {
+				log.error("acked record not found at read position, sequence " + db.getReadCount());
+				break;
+			}
+		}
+		if (leases.isEmpty()) {
+			closeLeases();
+		}
+	}
+
+	private void closeLeases() {
+		leases.clear();
+		leaseTimeouts.clear();
+		if (leaseWalker != null) {
+			leaseWalker.close();
+			leaseWalker = null;
+		}
+	}
+
+	/**
+	 * 一条预留的数据。token是数据的读取序号，在重新投递时保持不变
+	 */
+	public static class Lease implements Comparable<Lease> {
+		private final long sequence;
+		private byte[] data;
+		private long deadline;
+		private int deliveries = 1;
+		private boolean acked = false;
+
+		private Lease(long sequence, byte[] data, long deadline) {
+			this.sequence = sequence;
+			this.data = data;
+			this.deadline = deadline;
+		}
+
+		public long getToken() {
+			return sequence;
+		}
+
+		/**
+		 * 确认之后返回null
+		 */
+		public byte[] getData() {
+			return data;
+		}
+
+		/**
+		 * @return 投递的次数，重新投递时大于1
+		 */
+		public int getDeliveries() {
+			return deliveries;
+		}
+
+		@Override
+		public int compareTo(Lease o) {
+			return deadline < o.deadline ? -1 : (deadline == o.deadline ? 0 : 1);
+		}
+	}
+
+	/**
+	 * 从队列存储中批量取出数据并移除，读位置和队列大小每批只更新一次
+	 * 
+	 * @param list
+	 *            存放取出的数据
+	 * @param maxCount
+	 *            最多取出的条数
+	 * @param maxBytes
+	 *            累计字节数达到该值后停止
+	 * @return 取出的条数
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public int readBatchAndRemove(List<byte[]> list, int maxCount, int maxBytes) throws IOException,
+			FileFormatException {
+		int count = 0;
+		int bytes = 0;
+		if (leaseWalker != null) {
+			// 有预留的数据时逐条读取，读位置由确认推进
+			byte[] b;
+			while (count < maxCount && bytes < maxBytes && (b = readAndAck()) != null) {
+				list.add(b);
+				count++;
+				bytes += b.length;
+			}
+			return count;
+		}
+		long fileBytes = 0;
+		// 跳过的无法解压的数据，和取出的数据一起计入已读
+		int skipped = 0;
+		try {
+			while (count < maxCount && bytes < maxBytes) {
+				int start = list.size();
+				LogEntity handle = readerHandle;
+				long startPosition = handle.getReaderPosition();
+				int n;
+				try {
+					n = handle.readBatchAndRemove(list, maxCount - count, maxBytes - bytes);
+				} catch (FileEOFException e) {
+					countSkipped(handle, startPosition, count + skipped);
+					rotateNextLogReader();
+					continue;
+				}
+				if (n == 0) {
+					if (countSkipped(handle, startPosition, count + skipped)) {
+						continue;
+					}
+					break;
+				}
+				for (int i = start, end = start + n; i < end; i++) {
+					bytes += list.get(i).length;
+				}
+				count += n;
+				skipped += handle.takeSkippedRecords();
+				fileBytes += handle.getReaderPosition() - startPosition;
+				readAhead(handle);
+			}
+		} finally {
+			if (count + skipped > 0) {
+				db.addReadCount(count + skipped, fileBytes);
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * 把读位置移动到序号为sequence的数据，之后的读取从这条数据开始。可以向前移动到还没有删除的文件中重新读取，配合保留策略可以回放已经读过的数据，
+	 * 也可以向后跳过数据。先用数据文件头中第一条数据的序号找到文件，再从稀疏索引中不大于sequence的位置开始逐条跳过。
+	 * 预留中的数据全部放弃，之后重新投递。需要和读取互斥
+	 * 
+	 * @param sequence
+	 *            数据的序号，即队列创建以来在它之前写入的条数
+	 * @return 数据所在的文件已经删除，或者是没有记录序号的旧版本文件时返回false
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public boolean seek(long sequence) throws IOException, FileFormatException {
+		if (sequence < 0 || sequence > db.getWriteCount()) {
+			return false;
+		}
+		// 定位和移动读位置期间不能删除文件
+		synchronized (consumers) {
+			return seekLocked(sequence);
+		}
+	}
+
+	private boolean seekLocked(long sequence) throws IOException, FileFormatException {
+		int lowest = deleteFrom;
+		int fileNumber = -1;
+		long baseSequence = -1;
+		for (int i = writerHandle.getCurrentFileNumber(); i >= lowest; i--) {
+			long[] header = readHeader(i);
+			if (header == null || header[2] < 0) {
+				break;
+			}
+			if (header[2] <= sequence) {
+				fileNumber = i;
+				baseSequence = header[2];
+				break;
+			}
+		}
+		if (fileNumber < 0) {
+			return false;
+		}
+		long position = -1;
+		SegmentReader reader = new SegmentReader(getFilePath(fileNumber), fileNumber);
+		try {
+			long current = baseSequence;
+			position = reader.getDataStart();
+			long[] entry = SparseIndex.floor(getSparseIndexPath(fileNumber), sequence);
+			if (entry != null && entry[0] >= baseSequence) {
+				current = entry[0];
+				position = entry[1];
+			}
+			long limit = reader.getEndPosition();
+			if (limit < 0) {
+				LogEntity writer = writerHandle;
+				limit = writer.getCurrentFileNumber() == fileNumber ? writer.getWriterPosition() : reader
+						.getEndPosition();
+			}
+			for (; current < sequence; current++) {
+				byte[] b = reader.read(position, limit);
+				if (b == null) {
+					log.error("seek " + sequence + " failed at file " + fileNumber + " position " + position);
+					return false;
+				}
+				position += b.length + reader.getRecordHeaderLength();
+			}
+		} finally {
+			reader.close();
+		}
+		closeLeases();
+		discardPreopened();
+		LogEntity previous = readerHandle;
+		long readBytes = db.getReadBytes();
+		if (fileNumber < previous.getCurrentFileNumber()
+				|| (fileNumber == previous.getCurrentFileNumber() && position < previous.getReaderPosition())) {
+			readBytes -= bytesBetween(fileNumber, position, previous.getCurrentFileNumber(),
+					previous.getReaderPosition());
+		} else {
+			readBytes += bytesBetween(previous.getCurrentFileNumber(), previous.getReaderPosition(), fileNumber,
+					position);
+		}
+		// 读文件和读位置一起记录，再设置计数，最后和clear一样刷盘，中途退出时不会出现读文件和读位置不匹配
+		db.putReader(fileNumber, position);
+		handoffLock.lock();
+		try {
+			LogEntity handle = previous;
+			if (writerHandle.getCurrentFileNumber() == fileNumber) {
+				handle = writerHandle;
+			} else if (previous.getCurrentFileNumber() != fileNumber) {
+				handle = createLogEntity(getFilePath(fileNumber), db, fileNumber);
+			}
+			handle.seekReader(position);
+			readerHandle = handle;
+			if (previous != handle && previous != writerHandle) {
+				previous.close();
+			}
+		} finally {
+			handoffLock.unlock();
+		}
+		db.putReadCount(sequence, readBytes);
+		db.flush();
+		releaseSegments();
+		return true;
+	}
+
+	/**
+	 * 清空队列：读位置直接移动到写位置，读完的文件交给FileRunner删除，不逐条读取数据。
+	 * 需要和读写都互斥，命名消费者的读位置不受影响
+	 * 
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public void clear() throws IOException, FileFormatException {
+		synchronized (consumers) {
+			closeLeases();
+			discardPreopened();
+			LogEntity writer = writerHandle;
+			LogEntity previous = readerHandle;
+			int fileNumber = writer.getCurrentFileNumber();
+			// 先把读文件和读位置一起移到写位置，再设置计数并刷盘，最后切换内存中的读实例。
+			// 设置计数之前退出时读位置已经在写位置，启动时按读位置重新统计，队列为空
+			db.putReader(fileNumber, writer.getWriterPosition());
+			db.putReadCount(db.getWriteCount(), db.getWriteBytes());
+			db.flush();
+			handoffLock.lock();
+			try {
+				writer.seekReader(writer.getWriterPosition());
+				readerHandle = writer;
+				if (previous != writer) {
+					previous.close();
+				}
+			} finally {
+				handoffLock.unlock();
+			}
+			releaseSegments();
+		}
+	}
+
+	/**
+	 * 计算两个位置之间的数据在数据文件中占用的字节数，from不能在to之后，之间的文件都已经写满
+	 */
+	private long bytesBetween(int fromFile, long fromPosition, int toFile, long toPosition) {
+		if (fromFile == toFile) {
+			return toPosition - fromPosition;
+		}
+		long bytes = 0;
+		for (int i = fromFile; i < toFile; i++) {
+			long[] header = readHeader(i);
+			if (header != null) {
+				long start = i == fromFile ? fromPosition : LogEntity.getDataStart((int) header[0]);
+				bytes += Math.max(header[1] - start, 0);
+			}
+		}
+		long[] header = readHeader(toFile);
+		int dataStart = header == null ? LogEntity.HEADER_LENGTH : LogEntity.getDataStart((int) header[0]);
+		return bytes + toPosition - dataStart;
+	}
+
+	/**
+	 * 当前文件已经读完，切换到下一个文件，所有消费者都读完的文件交给FileRunner删除
+	 * 
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	private void rotateNextLogReader() throws IOException, FileFormatException {
+		long start = System.nanoTime();
+		LogEntity previous = readerHandle;
+		int nextfile = previous.getNextFile();
+		// 后台打开任务需要handoffLock，在加锁之前取出
+		LogEntity next = takePreopened(nextfile);
+		readAheadPosition = 0;
+		// 更新下一次读取的位置和索引，最小的数据起始位置表示从下一个文件的开头读取
+		db.putReader(nextfile, LogEntity.messageStartPosition);
+		handoffLock.lock();
+		try {
+			if (writerHandle.getCurrentFileNumber() == nextfile) {
+				readerHandle = writerHandle;
+				if (next != null) {
+					next.close();
+					next = null;
+				}
+			} else if (next != null) {
+				readerHandle = next;
+			} else {
+				readerHandle = createLogEntity(getFilePath(nextfile), db,
+						nextfile);
+			}
+			// 读完的文件已经被写线程标记结束，不会再是写实例
+			previous.close();
+		} finally {
+			handoffLock.unlock();
+		}
+		TransitionStatistics.record(System.nanoTime() - start, next != null);
+		releaseSegments();
+	}
+
+	public void close() {
+		closed = true;
+		closeLeases();
+		discardPreopened();
+		sparseIndex.close();
+		for (Consumer consumer : consumers.values()) {
+			consumer.close();
+		}
+		readerHandle.close();
+		writerHandle.close();
+		fileRunner.exit();
+	}
+
+	/**
+	 * @return 到目前为止写入数据的序号，即队列创建以来累计写入的条数，只在写线程中读取才有意义
+	 */
+	public long getWrittenSequence() {
+		return db.getWriteCount();
+	}
+
+	/**
+	 * @return 下一条读取数据的序号，即队列创建以来累计读取的条数
+	 */
+	public long getReadSequence() {
+		return db.getReadCount();
+	}
+
+	/**
+	 * 等待序号sequence之前写入的数据全部刷盘。没有其他线程在刷盘时由当前线程刷盘，
+	 * 否则等待正在进行的刷盘完成，并发写入的线程共用一次刷盘
+	 * 
+	 * @param sequence
+	 */
+	public void awaitSynced(long sequence) {
+		syncLock.lock();
+		try {
+			while (syncedSequence < sequence) {
+				if (syncing) {
+					syncDone.awaitUninterruptibly();
+					continue;
+				}
+				syncing = true;
+				syncLock.unlock();
+				// 先读序号再刷盘，刷盘覆盖读序号之前的所有写入
+				long target = db.getWriteCount();
+				try {
+					writerHandle.flush();
+				} finally {
+					syncLock.lock();
+					syncing = false;
+					syncDone.signalAll();
+				}
+				if (target > syncedSequence) {
+					syncedSequence = target;
+				}
+			}
+		} finally {
+			syncLock.unlock();
+		}
+	}
+
+	/**
+	 * 设置写入后是否等待数据刷盘才返回
+	 * 
+	 * @param durable
+	 */
+	public void setDurable(boolean durable) {
+		this.durable = durable;
+	}
+
+	public boolean isDurable() {
+		return durable;
+	}
+
+	public SyncPolicy getSyncPolicy() {
+		return syncPolicy;
+	}
+
+	public int getQueuSize() {
+		long size = db.getSize();
+		return size > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) size;
+	}
+
+	/**
+	 * @return 积压的数据在数据文件中占用的字节数
+	 */
+	public long getQueueBytes() {
+		return db.getBacklogBytes();
 	}
 }
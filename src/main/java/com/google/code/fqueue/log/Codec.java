@@ -0,0 +1,230 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import com.google.code.fqueue.util.Lzf;
+
+/**
+ * 数据的压缩方式，编号记录在每条数据头部属性字节的低3位。压缩后的数据为[原始长度][压缩数据]，
+ * 太短或者压缩后没有变小的数据原样存放。配置格式为 none、deflate、lzf
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public enum Codec {
+	NONE(0) {
+		@Override
+		int compress(byte[] data, byte[] out, int outPos) {
+			return -1;
+		}
+
+		@Override
+		void decompress(byte[] data, int offset, byte[] out) {
+			throw new IllegalArgumentException("data is not compressed");
+		}
+	},
+	DEFLATE(1) {
+		@Override
+		int compress(byte[] data, byte[] out, int outPos) {
+			Deflater deflater = deflaters.get();
+			deflater.reset();
+			deflater.setInput(data);
+			deflater.finish();
+			int length = deflater.deflate(out, outPos, out.length - outPos);
+			return deflater.finished() ? length : -1;
+		}
+
+		@Override
+		void decompress(byte[] data, int offset, byte[] out) {
+			Inflater inflater = inflaters.get();
+			inflater.reset();
+			inflater.setInput(data, offset, data.length - offset);
+			try {
+				if (inflater.inflate(out) != out.length || inflater.finished() == false) {
+					throw new IllegalArgumentException("deflate length mismatch");
+				}
+			} catch (DataFormatException e) {
+				throw new IllegalArgumentException("deflate data corrupted", e);
+			}
+		}
+	},
+	LZF(2) {
+		@Override
+		int compress(byte[] data, byte[] out, int outPos) {
+			return Lzf.compress(data, data.length, out, outPos);
+		}
+
+		@Override
+		void decompress(byte[] data, int offset, byte[] out) {
+			Lzf.decompress(data, offset, data.length - offset, out);
+		}
+	};
+
+	/**
+	 * 属性字节中压缩方式占用的位
+	 */
+	public static final int MASK = 0x07;
+	/**
+	 * 短于这个长度的数据不压缩
+	 */
+	public static final int MIN_LENGTH = 64;
+	/**
+	 * 每个线程复用压缩和解压对象，避免每条数据都分配本地内存
+	 */
+	private static final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.BEST_SPEED);
+		}
+	};
+	private static final ThreadLocal<Inflater> inflaters = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+	/**
+	 * 进程内压缩过的数据条数、原始字节数和压缩后的字节数，以及因为没有变小而原样存放的条数
+	 */
+	private static final AtomicLong compressedRecords = new AtomicLong();
+	private static final AtomicLong rawBytes = new AtomicLong();
+	private static final AtomicLong storedBytes = new AtomicLong();
+	private static final AtomicLong skippedRecords = new AtomicLong();
+	private final byte id;
+
+	private Codec(int id) {
+		this.id = (byte) id;
+	}
+
+	public byte getId() {
+		return id;
+	}
+
+	/**
+	 * 压缩data写入out的outPos之后
+	 *
+	 * @return 压缩后的长度，out放不下时返回-1
+	 */
+	abstract int compress(byte[] data, byte[] out, int outPos);
+
+	/**
+	 * 解压data中offset之后的数据，解压后的数据正好填满out
+	 */
+	abstract void decompress(byte[] data, int offset, byte[] out);
+
+	/**
+	 * 压缩一条数据
+	 *
+	 * @param data
+	 * @return 压缩后的数据，不压缩或者压缩后没有变小时返回data本身
+	 */
+	public byte[] encode(byte[] data) {
+		if (this == NONE || data.length < MIN_LENGTH) {
+			return data;
+		}
+		byte[] out = new byte[4 + Lzf.maxCompressedLength(data.length)];
+		int length = compress(data, out, 4);
+		if (length < 0 || length + 4 >= data.length) {
+			skippedRecords.incrementAndGet();
+			return data;
+		}
+		out[0] = (byte) (data.length >>> 24);
+		out[1] = (byte) (data.length >>> 16);
+		out[2] = (byte) (data.length >>> 8);
+		out[3] = (byte) data.length;
+		byte[] b = new byte[length + 4];
+		System.arraycopy(out, 0, b, 0, b.length);
+		compressedRecords.incrementAndGet();
+		rawBytes.addAndGet(data.length);
+		storedBytes.addAndGet(b.length);
+		return b;
+	}
+
+	/**
+	 * 按属性字节中记录的压缩方式还原一条数据
+	 *
+	 * @param attributes
+	 * @param data
+	 * @return
+	 * @throws IllegalArgumentException
+	 *             未知的压缩方式或者数据格式错误
+	 */
+	public static byte[] decode(byte attributes, byte[] data) {
+		int id = attributes & MASK;
+		if (id == 0) {
+			return data;
+		}
+		Codec codec = valueOf(id);
+		if (data.length < 4) {
+			throw new IllegalArgumentException("compressed data too short");
+		}
+		int length = ((data[0] & 0xff) << 24) | ((data[1] & 0xff) << 16) | ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+		if (length < 0) {
+			throw new IllegalArgumentException("illegal compressed length:" + length);
+		}
+		byte[] out = new byte[length];
+		codec.decompress(data, 4, out);
+		return out;
+	}
+
+	public static Codec valueOf(int id) {
+		Codec[] codecs = values();
+		for (int i = 0; i < codecs.length; i++) {
+			if (codecs[i].id == id) {
+				return codecs[i];
+			}
+		}
+		throw new IllegalArgumentException("unknown codec:" + id);
+	}
+
+	/**
+	 * 解析配置，为空时返回NONE
+	 *
+	 * @param setting
+	 * @return
+	 */
+	public static Codec parse(String setting) {
+		if (setting == null || setting.trim().length() == 0) {
+			return NONE;
+		}
+		try {
+			return valueOf(setting.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("unknown codec:" + setting);
+		}
+	}
+
+	/**
+	 * @return 压缩后的字节数和原始字节数的比例，没有压缩过数据时为1
+	 */
+	public static double getRatio() {
+		long raw = rawBytes.get();
+		return raw == 0 ? 1 : (double) storedBytes.get() / raw;
+	}
+
+	public static String getStats() {
+		return "compressedRecords:" + compressedRecords.get() + "\r\nuncompressedRecords:" + skippedRecords.get()
+				+ "\r\nrawBytes:" + rawBytes.get() + "\r\nstoredBytes:" + storedBytes.get()
+				+ "\r\ncompressionRatio:" + String.format(Locale.ENGLISH, "%.3f", getRatio());
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.code.fqueue.exception.FileFormatException;
+import com.google.code.fqueue.util.MappedByteBufferUtil;
+
+/**
+ * 命名消费者的索引文件，记录消费者自己的读文件、读位置和累计读取的条数。
+ * 格式为[magic][版本][读文件编号][读位置][读取条数]
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public class ConsumerIndex {
+	private final Logger log = LoggerFactory.getLogger(ConsumerIndex.class);
+	public static final int VERSION = 1;
+	private static final int LENGTH = 32;
+	private static final int READER_INDEX_OFFSET = 12;
+	private static final int READER_POSITION_OFFSET = 16;
+	private static final int READ_COUNT_OFFSET = 24;
+	private final File file;
+	private RandomAccessFile raFile;
+	private FileChannel fc;
+	private MappedByteBuffer mappedByteBuffer;
+	private volatile int readerIndex;
+	private volatile long readerPosition;
+	private volatile long readCount;
+
+	/**
+	 * 打开消费者的索引文件，文件不存在时以指定的位置创建
+	 *
+	 * @param path
+	 * @param readerIndex
+	 * @param readerPosition
+	 * @param readCount
+	 * @throws IOException
+	 * @throws FileFormatException
+	 */
+	public ConsumerIndex(String path, int readerIndex, long readerPosition, long readCount) throws IOException,
+			FileFormatException {
+		file = new File(path);
+		boolean exists = file.exists();
+		if (exists && file.length() < LENGTH) {
+			throw new FileFormatException("file format error");
+		}
+		raFile = new RandomAccessFile(file, "rw");
+		fc = raFile.getChannel();
+		mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0, LENGTH);
+		if (exists) {
+			byte[] b = new byte[LogEntity.MAGIC.length()];
+			mappedByteBuffer.get(b);
+			if (LogEntity.MAGIC.equals(new String(b)) == false) {
+				close();
+				throw new FileFormatException("file format error");
+			}
+			this.readerIndex = mappedByteBuffer.getInt(READER_INDEX_OFFSET);
+			this.readerPosition = mappedByteBuffer.getLong(READER_POSITION_OFFSET);
+			this.readCount = mappedByteBuffer.getLong(READ_COUNT_OFFSET);
+		} else {
+			put(readerIndex, readerPosition, readCount);
+			mappedByteBuffer.put(LogEntity.MAGIC.getBytes());
+			mappedByteBuffer.putInt(VERSION);
+			mappedByteBuffer.force();
+		}
+	}
+
+	/**
+	 * 记录读文件、读位置和读取条数，只由持有消费者的线程调用
+	 */
+	public void put(int readerIndex, long readerPosition, long readCount) {
+		mappedByteBuffer.putInt(READER_INDEX_OFFSET, readerIndex);
+		mappedByteBuffer.putLong(READER_POSITION_OFFSET, readerPosition);
+		mappedByteBuffer.putLong(READ_COUNT_OFFSET, readCount);
+		this.readerIndex = readerIndex;
+		this.readerPosition = readerPosition;
+		this.readCount = readCount;
+	}
+
+	public int getReaderIndex() {
+		return readerIndex;
+	}
+
+	public long getReaderPosition() {
+		return readerPosition;
+	}
+
+	public long getReadCount() {
+		return readCount;
+	}
+
+	public void flush() {
+		MappedByteBuffer buffer = mappedByteBuffer;
+		if (buffer != null) {
+			buffer.force();
+		}
+	}
+
+	public void close() {
+		if (mappedByteBuffer == null) {
+			return;
+		}
+		try {
+			mappedByteBuffer.force();
+			MappedByteBufferUtil.clean(mappedByteBuffer);
+			mappedByteBuffer = null;
+			fc.close();
+			raFile.close();
+		} catch (IOException e) {
+			log.error("close consumer index file error:", e);
+		}
+	}
+
+	/**
+	 * 关闭并删除索引文件
+	 */
+	public void delete() {
+		close();
+		if (file.delete() == false) {
+			log.warn("delete consumer index file " + file + " failed");
+		}
+	}
+}
@@ -18,100 +18,389 @@ package com.google.code.fqueue.log;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.nio.MappedByteBuffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
+import java.util.Map;
 import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.code.fqueue.util.MappedByteBufferUtil;
-
 /**
+ * 回收或者删除读完的数据文件，并在写文件之后预创建若干个数据文件。每个队列一个实例，回收和删除有任务时才提交到共用的FlushScheduler执行，
+ * 写满新文件比较耗时，在所有队列共用的一个预创建线程中执行，不占用刷盘线程。
+ * 读完的数据文件重置文件头之后改名为还没有准备好的后续文件，后续文件都已经准备好时改名为.spare备用，不再删除和重新分配；
+ * 其中残留的数据校验值按原来的文件编号计算，不会被当成有效数据。预创建的数据文件个数可以通过系统属性fqueue.prealloc.segments设置，
+ * 新创建的文件会先写满0，让文件系统提前分配磁盘空间，可以通过系统属性fqueue.prealloc.touch关闭
+ * 
  * @author sunli
  * @date 2011-5-18
  * @version $Id$
  */
 public class FileRunner implements Runnable {
     private final Logger log = LoggerFactory.getLogger(FileRunner.class);
+    public static final int DEFAULT_POOL_SIZE = Math.max(Integer.getInteger("fqueue.prealloc.segments", 2), 1);
+    private static final boolean touch = Boolean.parseBoolean(System.getProperty("fqueue.prealloc.touch", "true"));
+    private static final int TOUCH_CHUNK = 1024 * 1024;
+    /**
+     * 进程内写线程切换文件时下一个文件已经准备好和需要当场创建的次数，以及回收、预创建和删除的文件数
+     */
+    private static final AtomicLong readyRotations = new AtomicLong();
+    private static final AtomicLong missedRotations = new AtomicLong();
+    private static final AtomicLong recycledFiles = new AtomicLong();
+    private static final AtomicLong createdFiles = new AtomicLong();
+    private static final AtomicLong deletedFiles = new AtomicLong();
+    /**
+     * 已经关闭但是还有没释放的Slice的数据文件，这些文件只能删除，不能回收
+     */
+    private static final Map<String, SegmentBuffer> pinned = new ConcurrentHashMap<String, SegmentBuffer>();
+    private static final ExecutorService preallocator = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "fqueue-prealloc");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
     // 删除队列
-    private static final Queue<String> deleteQueue = new ConcurrentLinkedQueue<String>();
-    // 新创建队列
-    private static final Queue<String> createQueue = new ConcurrentLinkedQueue<String>();
+    private final Queue<String> deleteQueue = new ConcurrentLinkedQueue<String>();
+    // 回收队列
+    private final Queue<String> recycleQueue = new ConcurrentLinkedQueue<String>();
+    // 已经重置文件头的备用文件，最多poolSize个
+    private final Queue<File> spares = new ConcurrentLinkedQueue<File>();
+    // 创建和改名数据文件的锁，同一个队列的LogEntity打开文件时也要获取，保证不会打开一个还没写完文件头的文件
+    private final Object createLock = new Object();
     private String baseDir = null;
-    private int fileLimitLength = 0;
+    private long fileLimitLength = 0;
+    private final int poolSize;
+    // 写文件编号，之后的poolSize个文件需要准备好
+    private volatile int writerIndex = -1;
     private volatile boolean keepRunning = true;
+    // 是否已经提交了还没执行的任务
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicBoolean creating = new AtomicBoolean(false);
+    private final Runnable createTask = new Runnable() {
+        @Override
+        public void run() {
+            creating.set(false);
+            int target;
+            try {
+                while (keepRunning && (target = nextMissing()) >= 0) {
+                    if (create(getPath(target)) == false) {
+                        break;
+                    }
+                }
+            } catch (IOException e) {
+                log.error("预创建数据文件失败", e);
+            }
+        }
+    };
 
-    public static void addDeleteFile(String path) {
+    public void addDeleteFile(String path) {
         deleteQueue.add(path);
+        schedule();
     }
 
-    public static void addCreateFile(String path) {
-        createQueue.add(path);
+    /**
+     * 读完的数据文件，可以回收时改名为后续的文件，否则删除
+     * 
+     * @param path
+     */
+    public void addRecycleFile(String path) {
+        recycleQueue.add(path);
+        schedule();
     }
 
-    public FileRunner(String baseDir, int fileLimitLength) {
+    public FileRunner(String baseDir, long fileLimitLength) {
+        this(baseDir, fileLimitLength, DEFAULT_POOL_SIZE);
+    }
+
+    /**
+     * @param baseDir
+     *            数据文件路径的前缀
+     * @param fileLimitLength
+     *            数据文件的大小
+     * @param poolSize
+     *            写文件之后预先准备好的文件个数
+     */
+    public FileRunner(String baseDir, long fileLimitLength, int poolSize) {
+        if (poolSize < 1) {
+            throw new IllegalArgumentException("poolSize must be positive");
+        }
         this.baseDir = baseDir;
         this.fileLimitLength = fileLimitLength;
+        this.poolSize = poolSize;
+        // 上次运行留下的备用文件继续使用，没有写完的临时文件删除
+        File base = new File(baseDir);
+        File[] files = base.getParentFile() == null ? null : base.getParentFile().listFiles();
+        if (files != null) {
+            for (int i = 0; i < files.length; i++) {
+                String name = files[i].getName();
+                if (name.startsWith(base.getName()) && name.endsWith(".spare")) {
+                    spares.add(files[i]);
+                } else if (name.startsWith(base.getName()) && name.endsWith(".idb.tmp")) {
+                    files[i].delete();
+                }
+            }
+        }
+    }
+
+    /**
+     * 写线程打开或者切换到writerIndex之后调用，在后台准备好之后的文件
+     * 
+     * @param writerIndex
+     */
+    public void prepare(int writerIndex) {
+        this.writerIndex = writerIndex;
+        if (keepRunning) {
+            schedule();
+        }
+    }
+
+    public Object getCreateLock() {
+        return createLock;
+    }
+
+    /**
+     * 写线程切换到fileNumber之前调用。文件还没有准备好时直接把一个备用文件改名过去，只是一次改名，不等待预创建线程
+     * 
+     * @param fileNumber
+     * @return 文件是否已经准备好
+     */
+    public boolean claim(int fileNumber) {
+        String path = getPath(fileNumber);
+        if (new File(path).exists()) {
+            return true;
+        }
+        File spare;
+        while ((spare = spares.poll()) != null) {
+            if (moveTo(spare, path)) {
+                return true;
+            }
+            if (new File(path).exists()) {
+                spares.add(spare);
+                return true;
+            }
+            spare.delete();
+        }
+        return false;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            FlushScheduler.execute(this);
+        }
+    }
+
+    private String getPath(int fileNumber) {
+        return baseDir + fileNumber + ".idb";
     }
 
     @Override
     public void run() {
-        String filePath, fileNum;
-        while (keepRunning) {
-            filePath = deleteQueue.poll();
-            fileNum = createQueue.poll();
-            if (filePath == null && fileNum == null) {
-                try {
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                    log.error(e.getMessage(), e);
+        // 先清除标记，执行期间加入的文件会重新提交任务
+        scheduled.set(false);
+        String filePath;
+        while ((filePath = recycleQueue.poll()) != null) {
+            try {
+                if (keepRunning && recycle(filePath)) {
+                    recycledFiles.incrementAndGet();
+                    continue;
                 }
-                continue;
+            } catch (IOException e) {
+                log.warn("回收数据文件失败", e);
             }
-            if (filePath != null) {
-                File delFile = new File(filePath);
-                delFile.delete();
+            delete(filePath);
+        }
+        while ((filePath = deleteQueue.poll()) != null) {
+            delete(filePath);
+        }
+        // 先用备用文件补齐，剩下的由预创建线程创建，已经关闭的队列不再预创建文件
+        int target;
+        File spare;
+        while (keepRunning && (target = nextMissing()) >= 0 && (spare = spares.poll()) != null) {
+            if (moveTo(spare, getPath(target)) == false) {
+                spare.delete();
             }
+        }
+        if (keepRunning && nextMissing() >= 0 && creating.compareAndSet(false, true)) {
+            preallocator.execute(createTask);
+        }
+    }
 
-            if (fileNum != null) {
-                filePath = baseDir + fileNum + ".idb";
-                try {
-                    create(filePath);
-                } catch (IOException e) {
-                    log.error("预创建数据文件失败", e);
-                }
+    /**
+     * @return 写文件之后第一个还不存在的文件编号，都已经准备好时返回-1
+     */
+    private int nextMissing() {
+        int index = writerIndex;
+        if (index < 0) {
+            return -1;
+        }
+        for (int i = index + 1; i <= index + poolSize; i++) {
+            if (new File(getPath(i)).exists() == false) {
+                return i;
             }
         }
+        return -1;
+    }
 
+    private void delete(String path) {
+        pinned.remove(path);
+        if (new File(path).delete()) {
+            deletedFiles.incrementAndGet();
+        }
     }
 
-    private boolean create(String path) throws IOException {
-        File file = new File(path);
-        if (file.exists() == false) {
-            if (file.createNewFile() == false) {
+    /**
+     * 把读完的文件重置为预创建文件的文件头，再改名为还没有准备好的后续文件或者备用文件。
+     * 还有Slice引用、大小不同或者备用文件已经够多时不回收
+     */
+    private boolean recycle(String path) throws IOException {
+        SegmentBuffer buffer = pinned.get(path);
+        if (buffer != null) {
+            if (buffer.isUnmapped() == false) {
                 return false;
             }
-            RandomAccessFile raFile = new RandomAccessFile(file, "rwd");
-            FileChannel fc = raFile.getChannel();
-            MappedByteBuffer mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0, this.fileLimitLength);
-            mappedByteBuffer.put(LogEntity.MAGIC.getBytes());
-            mappedByteBuffer.putInt(1);// 8 version
-            mappedByteBuffer.putInt(-1);// 12next fileindex
-            mappedByteBuffer.putInt(-2);// 16
-            mappedByteBuffer.force();
-            MappedByteBufferUtil.clean(mappedByteBuffer);
-            fc.close();
+            pinned.remove(path);
+        }
+        File file = new File(path);
+        int target = nextMissing();
+        if (file.length() != fileLimitLength || (target < 0 && spares.size() >= poolSize)) {
+            return false;
+        }
+        // 先重置文件头再改名，中途退出只会留下一个没有引用的文件
+        RandomAccessFile raFile = new RandomAccessFile(file, "rwd");
+        try {
+            writeHeader(raFile);
+        } finally {
             raFile.close();
+        }
+        if (target >= 0 && moveTo(file, getPath(target))) {
             return true;
-        } else {
+        }
+        File spareFile = new File(path.substring(0, path.length() - ".idb".length()) + ".spare");
+        if (file.renameTo(spareFile)) {
+            spares.add(spareFile);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 把已经写好文件头的文件改名为target，target已经存在时返回false
+     */
+    private boolean moveTo(File file, String target) {
+        synchronized (createLock) {
+            File targetFile = new File(target);
+            return targetFile.exists() == false && file.renameTo(targetFile);
+        }
+    }
+
+    private boolean create(String path) throws IOException {
+        File file = new File(path);
+        if (file.exists()) {
             return false;
         }
+        // 在临时文件中分配空间并写好文件头，再改名为数据文件，LogEntity不会看到写到一半的文件
+        File temp = new File(path + ".tmp");
+        temp.delete();
+        // 文件可能超过2G，不能整体映射，直接写文件头再扩展到指定大小
+        RandomAccessFile raFile = new RandomAccessFile(temp, "rw");
+        try {
+            raFile.setLength(this.fileLimitLength);
+            if (touch) {
+                fill(raFile.getChannel());
+            }
+            writeHeader(raFile);
+            raFile.getChannel().force(false);
+        } finally {
+            raFile.close();
+        }
+        synchronized (createLock) {
+            if (file.exists() || temp.renameTo(file) == false) {
+                temp.delete();
+                return false;
+            }
+        }
+        createdFiles.incrementAndGet();
+        return true;
     }
-    
-    public void exit(){
+
+    /**
+     * 写满0，让文件系统分配磁盘空间，之后写入映射时不会再因为分配空间而阻塞
+     */
+    private void fill(FileChannel fc) throws IOException {
+        ByteBuffer zero = ByteBuffer.allocateDirect(TOUCH_CHUNK);
+        long position = 0;
+        while (keepRunning && position < fileLimitLength) {
+            zero.clear();
+            if (fileLimitLength - position < TOUCH_CHUNK) {
+                zero.limit((int) (fileLimitLength - position));
+            }
+            while (zero.hasRemaining()) {
+                position += fc.write(zero, position);
+            }
+        }
+    }
+
+    private void writeHeader(RandomAccessFile raFile) throws IOException {
+        raFile.seek(0);
+        raFile.write(LogEntity.MAGIC.getBytes());
+        raFile.writeInt(LogEntity.VERSION);// 8 version
+        raFile.writeInt(-1);// 12next fileindex
+        raFile.writeLong(-2);// 16
+        raFile.writeLong(-1);// 24 base sequence
+    }
+
+    /**
+     * 关闭时还有Slice引用映射的数据文件，在引用释放之前不回收
+     * 
+     * @param path
+     * @param buffer
+     */
+    static void pin(String path, SegmentBuffer buffer) {
+        pinned.put(path, buffer);
+    }
+
+    /**
+     * 记录一次写文件的切换
+     * 
+     * @param ready
+     *            下一个文件是否已经准备好
+     */
+    public static void countRotation(boolean ready) {
+        if (ready) {
+            readyRotations.incrementAndGet();
+        } else {
+            missedRotations.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return 切换文件时下一个文件还没有准备好、需要当场创建的次数
+     */
+    public static long getMissedRotations() {
+        return missedRotations.get();
+    }
+
+    public static long getRecycledFiles() {
+        return recycledFiles.get();
+    }
+
+    public static String getStats() {
+        return "preallocSegments:" + DEFAULT_POOL_SIZE + "\r\nreadyRotations:" + readyRotations.get()
+                + "\r\nmissedRotations:" + missedRotations.get() + "\r\nrecycledFiles:" + recycledFiles.get()
+                + "\r\ncreatedFiles:" + createdFiles.get() + "\r\ndeletedFiles:" + deletedFiles.get();
+    }
+
+    public void exit() {
         keepRunning = false;
     }
 }
@@ -0,0 +1,94 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 进程内所有队列共用的刷盘和文件维护线程池，线程数不随队列数量增长。
+ * 线程数可以通过系统属性fqueue.flush.threads设置，默认为2
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public final class FlushScheduler {
+	private static final Logger log = LoggerFactory.getLogger(FlushScheduler.class);
+	private static final int THREADS = Math.max(1, Integer.getInteger("fqueue.flush.threads", 2));
+	private static final ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(THREADS,
+			new ThreadFactory() {
+				private final AtomicInteger threadNumber = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "fqueue-flush-" + threadNumber.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+
+	private FlushScheduler() {
+	}
+
+	/**
+	 * 在delayMillis毫秒后执行任务
+	 *
+	 * @param task
+	 * @param delayMillis
+	 */
+	public static void schedule(Runnable task, long delayMillis) {
+		executor.schedule(new Guard(task), delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * 尽快执行任务
+	 *
+	 * @param task
+	 */
+	public static void execute(Runnable task) {
+		executor.execute(new Guard(task));
+	}
+
+	public static int getThreadCount() {
+		return THREADS;
+	}
+
+	/**
+	 * 记录任务抛出的异常，否则异常会被线程池吞掉
+	 */
+	private static class Guard implements Runnable {
+		private final Runnable task;
+
+		Guard(Runnable task) {
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} catch (Throwable e) {
+				log.error("flush task error", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内所有数据文件的刷盘统计
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public final class FlushStatistics {
+	private static final AtomicLong flushCount = new AtomicLong();
+	private static final AtomicLong flushBytes = new AtomicLong();
+	private static final AtomicLong flushNanos = new AtomicLong();
+	private static final AtomicLong maxFlushNanos = new AtomicLong();
+
+	private FlushStatistics() {
+	}
+
+	/**
+	 * 记录一次刷盘
+	 *
+	 * @param bytes
+	 *            刷盘的数据字节数
+	 * @param nanos
+	 *            刷盘耗时
+	 */
+	static void record(long bytes, long nanos) {
+		flushCount.incrementAndGet();
+		flushBytes.addAndGet(bytes);
+		flushNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxFlushNanos.get())) {
+			if (maxFlushNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public static long getFlushCount() {
+		return flushCount.get();
+	}
+
+	public static long getFlushBytes() {
+		return flushBytes.get();
+	}
+
+	/**
+	 * @return 累计刷盘耗时，单位微秒
+	 */
+	public static long getFlushMicros() {
+		return flushNanos.get() / 1000;
+	}
+
+	/**
+	 * @return 单次刷盘的最大耗时，单位微秒
+	 */
+	public static long getMaxFlushMicros() {
+		return maxFlushNanos.get() / 1000;
+	}
+
+	public static String getStats() {
+		long count = flushCount.get();
+		long micros = getFlushMicros();
+		return "flushCount:" + count + "\r\nflushBytes:" + flushBytes.get() + "\r\nflushMicros:" + micros
+				+ "\r\navgFlushMicros:" + (count == 0 ? 0 : micros / count) + "\r\nmaxFlushMicros:"
+				+ getMaxFlushMicros();
+	}
+}
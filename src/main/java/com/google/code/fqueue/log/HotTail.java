@@ -0,0 +1,204 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 最近写入的数据在内存中的副本，按序号放在固定大小的环中。数据仍然先写入数据文件，文件是唯一可信的来源，
+ * 环只是读缓存：读线程追上写线程时直接从环中取出数据，只把读位置移到这条数据之后，不再读取映射内存、校验和解压。
+ * 环中没有需要的序号，或者记录的文件和位置和读位置不一致时回到文件读取。
+ * 配置格式为 records:条数,bytes:字节数，条数和字节数同时限制环的大小
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public class HotTail {
+	public static final long DEFAULT_BYTES = 8 * 1024 * 1024;
+
+	private final int capacity;
+	private final long maxBytes;
+	private final AtomicReferenceArray<Entry> slots;
+	/**
+	 * 环中数据的字节数，以及命中、未命中和因为字节数限制没有放入环中的条数
+	 */
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong overflows = new AtomicLong();
+
+	/**
+	 * @param capacity
+	 *            环中最多保存的条数
+	 * @param maxBytes
+	 *            环中最多保存的字节数
+	 */
+	public HotTail(int capacity, long maxBytes) {
+		if (capacity <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("hot tail size must be positive");
+		}
+		this.capacity = capacity;
+		this.maxBytes = maxBytes;
+		this.slots = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	/**
+	 * 解析配置，例如 records:4096,bytes:8388608，没有设置bytes时使用DEFAULT_BYTES
+	 *
+	 * @param setting
+	 * @return 为空时返回null，表示不使用内存中的副本
+	 */
+	public static HotTail parse(String setting) {
+		if (setting == null || setting.trim().length() == 0) {
+			return null;
+		}
+		int records = 0;
+		long maxBytes = DEFAULT_BYTES;
+		String[] items = setting.trim().split(",");
+		for (int i = 0; i < items.length; i++) {
+			String[] item = items[i].trim().split(":");
+			if (item.length != 2) {
+				throw new IllegalArgumentException("hot tail need a value:" + setting);
+			}
+			String name = item[0].trim().toLowerCase(Locale.ENGLISH);
+			String value = item[1].trim();
+			if ("records".equals(name)) {
+				records = Integer.parseInt(value);
+			} else if ("bytes".equals(name)) {
+				maxBytes = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("unknown hot tail setting:" + setting);
+			}
+		}
+		if (records == 0) {
+			return null;
+		}
+		return new HotTail(records, maxBytes);
+	}
+
+	/**
+	 * 写入文件之后调用，覆盖环中同一个位置的旧数据。只由写线程调用
+	 *
+	 * @param sequence
+	 *            数据的序号
+	 * @param fileNumber
+	 *            数据所在的文件编号
+	 * @param position
+	 *            数据在文件中的起始位置
+	 * @param length
+	 *            数据在文件中占用的字节数，包括头部
+	 * @param data
+	 *            写入的原始数据，环中保存它的副本
+	 */
+	public void put(long sequence, int fileNumber, long position, int length, byte[] data) {
+		int slot = (int) (sequence % capacity);
+		Entry old = slots.getAndSet(slot, null);
+		if (old != null) {
+			bytes.addAndGet(-old.data.length);
+		}
+		if (bytes.get() + data.length > maxBytes) {
+			// 读线程落后太多，之后的数据从文件读取
+			overflows.incrementAndGet();
+			return;
+		}
+		byte[] copy = new byte[data.length];
+		System.arraycopy(data, 0, copy, 0, data.length);
+		bytes.addAndGet(copy.length);
+		slots.set(slot, new Entry(sequence, fileNumber, position, length, copy));
+	}
+
+	/**
+	 * 取出序号为sequence、位于文件fileNumber的position处的数据并从环中移除。只由读线程调用
+	 *
+	 * @return 环中没有这条数据时返回null
+	 */
+	public Entry take(long sequence, int fileNumber, long position) {
+		int slot = (int) (sequence % capacity);
+		Entry entry = slots.get(slot);
+		if (entry == null || entry.sequence != sequence || entry.fileNumber != fileNumber
+				|| entry.position != position || slots.compareAndSet(slot, entry, null) == false) {
+			misses.incrementAndGet();
+			return null;
+		}
+		bytes.addAndGet(-entry.data.length);
+		hits.incrementAndGet();
+		return entry;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public long getBytes() {
+		return bytes.get();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public String toString() {
+		return "records:" + capacity + ",bytes:" + maxBytes;
+	}
+
+	public String getStats() {
+		return "hits " + hits.get() + ",misses " + misses.get() + ",overflows " + overflows.get() + ",bytes "
+				+ bytes.get();
+	}
+
+	/**
+	 * 环中的一条数据，创建之后不再修改
+	 */
+	public static class Entry {
+		private final long sequence;
+		private final int fileNumber;
+		private final long position;
+		private final int length;
+		private final byte[] data;
+
+		private Entry(long sequence, int fileNumber, long position, int length, byte[] data) {
+			this.sequence = sequence;
+			this.fileNumber = fileNumber;
+			this.position = position;
+			this.length = length;
+			this.data = data;
+		}
+
+		public long getPosition() {
+			return position;
+		}
+
+		public int getLength() {
+			return length;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
@@ -18,14 +18,10 @@ package com.google.code.fqueue.log;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Method;
-import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
-import java.nio.channels.FileChannel.MapMode;
-import java.security.AccessController;
-import java.security.PrivilegedAction;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -43,13 +39,32 @@ public class LogEntity {
 	public static final byte WRITEFAILURE = 2;
 	public static final byte WRITEFULL = 3;
 	public static final String MAGIC = "FQueuefs";
+	/**
+	 * 版本3之前的文件头长度，也是所有版本中最小的数据起始位置。索引中小于数据起始位置的读写位置都表示从头开始
+	 */
 	public static int messageStartPosition = 20;
-	private final ExecutorService executor = Executors.newSingleThreadExecutor();
+	/**
+	 * 数据文件格式版本。版本1的每条数据为[长度][数据]，版本2为[长度][属性][CRC32][数据]，
+	 * 版本3的数据格式和版本2相同，文件头为[magic][版本][下一个文件][64位结束位置][第一条数据的序号]。
+	 * 旧版本的文件按原来的格式读写，新创建的文件使用版本3
+	 */
+	public static final int VERSION = 3;
+	public static final int HEADER_LENGTH = 32;
+	public static final int RECORD_HEADER_LENGTH = 9;
+	private static final int RECORD_HEADER_LENGTH_V1 = 4;
+	private static final int NEXT_FILE_OFFSET = 12;
+	private static final int END_POSITION_OFFSET = 16;
+	private static final int BASE_SEQUENCE_OFFSET = 24;
 	private File file;
 	private RandomAccessFile raFile;
 	private FileChannel fc;
-	public MappedByteBuffer mappedByteBuffer;
-	private int fileLimitLength = 1024 * 1024 * 40;
+	private SegmentBuffer buffer;
+	/**
+	 * 读写线程各自使用独立的视图，互不影响对方的position
+	 */
+	private SegmentBuffer.Cursor writeCursor;
+	private SegmentBuffer.Cursor readCursor;
+	private long fileLimitLength = 1024 * 1024 * 40;
 
 	private LogIndex db = null;
 	/**
@@ -57,112 +72,297 @@ public class LogEntity {
 	 */
 	private String magicString = null;
 	private int version = -1;
-	private int readerPosition = -1;
-	private int writerPosition = -1;
-	private int nextFile = -1;
-	private int endPosition = -1;
+	/**
+	 * 读位置只由读线程修改，遍历队列的线程也会读取
+	 */
+	private volatile long readerPosition = -1;
+	/**
+	 * 写位置和结束位置由写线程发布，读线程据此判断可读的范围
+	 */
+	private volatile long writerPosition = -1;
+	private volatile int nextFile = -1;
+	private volatile long endPosition = -1;
 	private int currentFileNumber = -1;
+	/**
+	 * 文件中第一条数据在整个队列中的序号，未知时为-1
+	 */
+	private volatile long baseSequence = -1;
+	/**
+	 * 数据的起始位置和每条数据的头部长度，由文件的版本决定
+	 */
+	private int dataStart = HEADER_LENGTH;
+	private int recordHeaderLength = RECORD_HEADER_LENGTH;
+	/**
+	 * 读写线程各自使用的校验对象和临时缓冲
+	 */
+	private final CRC32 writeCrc = new CRC32();
+	private final CRC32 readCrc = new CRC32();
+	private final byte[] writeScratch = new byte[9];
+	private final byte[] readScratch = new byte[9];
+	/**
+	 * 不复制数据读取时，分段把映射中的数据复制到这里计算校验值
+	 */
+	private byte[] readChunk;
+	private final SyncPolicy syncPolicy;
+	/**
+	 * 已经刷盘的写位置，它和writerPosition之间是还没有刷盘的数据，文件头的修改单独标记
+	 */
+	private volatile long syncedPosition = -1;
+	/**
+	 * 读线程跳过的无法解压的条数，还没有计入索引。只由读线程访问
+	 */
+	private int skippedRecords = 0;
+	/**
+	 * 读位置处损坏的数据的位置，没有时为-1。跳到哪里由FSQueue按序号决定
+	 */
+	private long corruptedPosition = -1;
+	private volatile boolean headerDirty = false;
+	/**
+	 * 按时间间隔刷盘时，每个文件最多只有一个等待执行的刷盘任务，截止时间之前的写入都由它刷盘
+	 */
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			// 先清除标记，刷盘期间的写入会重新提交任务
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+	/**
+	 * 是否由本实例创建的新文件
+	 */
+	private boolean newFile = false;
+	/**
+	 * 写入数据时使用的压缩方式，读取时按每条数据自己的属性解压
+	 */
+	private volatile Codec codec = Codec.NONE;
+
+	public LogEntity(String path, LogIndex db, int fileNumber,
+			long fileLimitLength) throws IOException, FileFormatException {
+		this(path, db, fileNumber, fileLimitLength, SyncPolicy.DEFAULT);
+	}
+
+	public LogEntity(String path, LogIndex db, int fileNumber,
+			long fileLimitLength, SyncPolicy syncPolicy) throws IOException, FileFormatException {
+		this(path, db, fileNumber, fileLimitLength, syncPolicy, new Object());
+	}
 
+	/**
+	 * @param createLock
+	 *            所在队列的FileRunner.getCreateLock()，和预创建、回收文件互斥
+	 */
 	public LogEntity(String path, LogIndex db, int fileNumber,
-			int fileLimitLength) throws IOException, FileFormatException {
+			long fileLimitLength, SyncPolicy syncPolicy, Object createLock) throws IOException, FileFormatException {
 		this.currentFileNumber = fileNumber;
 		this.fileLimitLength = fileLimitLength;
 		this.db = db;
+		this.syncPolicy = syncPolicy;
 		file = new File(path);
-		// 文件不存在，创建文件
-		if (file.exists() == false) {
-			createLogEntity();
-			FileRunner.addCreateFile(Integer.toString(fileNumber + 1));
-		} else {
-			raFile = new RandomAccessFile(file, "rwd");
+		boolean created;
+		// FileRunner可能正在预创建同一个文件，检查和创建文件需要互斥，避免打开一个还没有写入文件头的文件
+		synchronized (createLock) {
+			// 文件不存在，创建文件
+			created = file.exists() == false && createLogEntity();
+			if (created == false) {
+				raFile = new RandomAccessFile(file, "rwd");
+			}
+		}
+		newFile = created;
+		if (created == false) {
 			if (raFile.length() < LogEntity.messageStartPosition) {
 				throw new FileFormatException("file format error");
 			}
 			fc = raFile.getChannel();
-			mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0,
-					this.fileLimitLength);
+			buffer = new SegmentBuffer(fc, this.fileLimitLength);
+			writeCursor = buffer.cursor();
 			// magicString
 			byte[] b = new byte[8];
-			mappedByteBuffer.get(b);
+			writeCursor.get(0, b, 0, b.length);
 			magicString = new String(b);
 			if (magicString.equals(MAGIC) == false) {
 				throw new FileFormatException("file format error");
 			}
 			// version
-			version = mappedByteBuffer.getInt();
+			version = writeCursor.getInt(8);
 			// nextfile
-			nextFile = mappedByteBuffer.getInt();
-			endPosition = mappedByteBuffer.getInt();
+			nextFile = writeCursor.getInt(NEXT_FILE_OFFSET);
+			if (version >= 3) {
+				endPosition = writeCursor.getLong(END_POSITION_OFFSET);
+				baseSequence = writeCursor.getLong(BASE_SEQUENCE_OFFSET);
+			} else {
+				endPosition = writeCursor.getInt(END_POSITION_OFFSET);
+				dataStart = messageStartPosition;
+			}
 			// 未写满
 			if (endPosition == -1) {
-				this.writerPosition = db.getWriterPosition();
+				this.writerPosition = Math.max(db.getWriterPosition(), dataStart);
 			} else if (endPosition == -2) {// 预分配的文件
-				this.writerPosition = LogEntity.messageStartPosition;
-				db.putWriterPosition(this.writerPosition);
-				mappedByteBuffer.position(16);
-				mappedByteBuffer.putInt(-1);
+				// 旧版本预创建的空文件直接升级到新格式
+				if (version != VERSION) {
+					writeCursor.putInt(8, VERSION);
+					version = VERSION;
+					dataStart = HEADER_LENGTH;
+				}
+				writeCursor.putLong(END_POSITION_OFFSET, -1);
+				writeCursor.putLong(BASE_SEQUENCE_OFFSET, -1);
 				this.endPosition = -1;
+				this.writerPosition = dataStart;
+				db.putWriterPosition(this.writerPosition);
+				headerDirty = true;
 
 			} else {
 				this.writerPosition = endPosition;
 			}
+			if (version < 2) {
+				recordHeaderLength = RECORD_HEADER_LENGTH_V1;
+			}
+			// 旧版本的结束位置只有32位
+			if (version < 3) {
+				this.fileLimitLength = Math.min(this.fileLimitLength, Integer.MAX_VALUE);
+			}
 			if (db.getReaderIndex() == this.currentFileNumber) {
-				this.readerPosition = db.getReaderPosition();
+				this.readerPosition = Math.max(db.getReaderPosition(), dataStart);
 			} else {
-				this.readerPosition = LogEntity.messageStartPosition;
+				this.readerPosition = dataStart;
 			}
 		}
-		executor.execute(new Sync());
+		syncedPosition = writerPosition;
+		readCursor = buffer.cursor();
 
 	}
 
-	public class Sync implements Runnable {
-		@Override
-		public void run() {
-			while (true) {
-				if (mappedByteBuffer != null) {
-					try {
-						mappedByteBuffer.force();
-					} catch (Exception e) {
-						break;
-					}
-					try {
-						Thread.sleep(10);
-					} catch (InterruptedException e) {
-						break;
-					}
-				} else {
-					break;
-				}
-			}
+	/**
+	 * 标记有新写入的数据，按时间间隔刷盘时在没有等待的刷盘任务时提交一个
+	 */
+	private void markDirty() {
+		if (syncPolicy.getMode() == SyncPolicy.Mode.INTERVAL && flushScheduled.get() == false
+				&& flushScheduled.compareAndSet(false, true)) {
+			FlushScheduler.schedule(flushTask, syncPolicy.getValue());
+		}
+	}
 
+	/**
+	 * 把写入的数据和索引刷到磁盘，没有新数据时跳过数据文件。和close互斥，避免刷盘时文件被unmap
+	 */
+	public synchronized void flush() {
+		if (buffer != null) {
+			forceDirty();
 		}
+		// 数据先于索引落盘，索引不会指向还没有落盘的数据
+		db.flush();
+	}
 
+	/**
+	 * @return 上次刷盘之后是否有新的写入
+	 */
+	public boolean isDirty() {
+		return headerDirty || writerPosition > syncedPosition;
+	}
+
+	/**
+	 * 只刷上次刷盘之后写入的部分，不让内核遍历整个映射区域
+	 */
+	private void forceDirty() {
+		// 先清除标记再刷盘，刷盘期间写入的数据留到下一次
+		if (headerDirty) {
+			headerDirty = false;
+			force(0, dataStart);
+		}
+		long low = syncedPosition;
+		long high = writerPosition;
+		if (high > low) {
+			force(low, high);
+			syncedPosition = high;
+			db.putCheckpoint(currentFileNumber, high);
+		}
+	}
+
+	private void force(long from, long to) {
+		long start = System.nanoTime();
+		buffer.force(from, to);
+		FlushStatistics.record(to - from, System.nanoTime() - start);
 	}
 
 	public int getCurrentFileNumber() {
 		return this.currentFileNumber;
 	}
 
+	/**
+	 * @return 文件是否由本实例新创建，而不是打开已有的或者预创建的文件
+	 */
+	public boolean isNewFile() {
+		return newFile;
+	}
+
 	public int getNextFile() {
 		return this.nextFile;
 	}
 
+	public long getReaderPosition() {
+		return this.readerPosition;
+	}
+
+	/**
+	 * 把读位置移动到position，position必须是一条数据的起始位置。只由读线程调用
+	 * 
+	 * @param position
+	 */
+	public void seekReader(long position) {
+		this.readerPosition = Math.max(position, dataStart);
+		putReaderPosition(this.readerPosition);
+	}
+
+	public long getWriterPosition() {
+		return this.writerPosition;
+	}
+
+	/**
+	 * @return 文件写满时的结束位置，未写满时为-1
+	 */
+	public long getEndPosition() {
+		return this.endPosition;
+	}
+
+	/**
+	 * @return 第一条数据的起始位置
+	 */
+	public int getDataStart() {
+		return this.dataStart;
+	}
+
+	/**
+	 * 指定版本的数据文件中第一条数据的起始位置
+	 * 
+	 * @param version
+	 * @return
+	 */
+	public static int getDataStart(int version) {
+		return version >= 3 ? HEADER_LENGTH : messageStartPosition;
+	}
+
+	public int getVersion() {
+		return this.version;
+	}
+
 	private boolean createLogEntity() throws IOException {
 		if (file.createNewFile() == false) {
 			return false;
 		}
 		raFile = new RandomAccessFile(file, "rwd");
 		fc = raFile.getChannel();
-		mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0, this.fileLimitLength);
-		mappedByteBuffer.put(MAGIC.getBytes());
-		mappedByteBuffer.putInt(version);// 8 version
-		mappedByteBuffer.putInt(nextFile);// 12next fileindex
-		mappedByteBuffer.putInt(endPosition);// 16
-		mappedByteBuffer.force();
+		buffer = new SegmentBuffer(fc, this.fileLimitLength);
+		writeCursor = buffer.cursor();
+		version = VERSION;
+		writeCursor.put(0, MAGIC.getBytes(), 0, MAGIC.length());
+		writeCursor.putInt(8, version);// 8 version
+		writeCursor.putInt(NEXT_FILE_OFFSET, nextFile);// 12next fileindex
+		writeCursor.putLong(END_POSITION_OFFSET, endPosition);// 16
+		writeCursor.putLong(BASE_SEQUENCE_OFFSET, baseSequence);// 24
+		buffer.force(0, HEADER_LENGTH);
 		this.magicString = MAGIC;
-		this.writerPosition = LogEntity.messageStartPosition;
-		this.readerPosition = LogEntity.messageStartPosition;
+		this.writerPosition = HEADER_LENGTH;
+		this.readerPosition = HEADER_LENGTH;
 		db.putWriterPosition(this.writerPosition);
 		return true;
 	}
@@ -172,11 +372,11 @@ public class LogEntity {
 	 * 
 	 * @param pos
 	 */
-	private void putWriterPosition(int pos) {
+	private void putWriterPosition(long pos) {
 		db.putWriterPosition(pos);
 	}
 
-	private void putReaderPosition(int pos) {
+	private void putReaderPosition(long pos) {
 		db.putReaderPosition(pos);
 	}
 
@@ -186,9 +386,43 @@ public class LogEntity {
 	 * @param number
 	 */
 	public void putNextFile(int number) {
-		mappedByteBuffer.position(12);
-		mappedByteBuffer.putInt(number);
+		writeCursor.putInt(NEXT_FILE_OFFSET, number);
 		this.nextFile = number;
+		headerDirty = true;
+	}
+
+	/**
+	 * 标记文件已经写满，读线程读到结束位置后切换到nextFile，所以必须在putNextFile之后调用
+	 */
+	public void putEndPosition() {
+		if (version >= 3) {
+			writeCursor.putLong(END_POSITION_OFFSET, this.writerPosition);
+		} else {
+			writeCursor.putInt(END_POSITION_OFFSET, (int) this.writerPosition);
+		}
+		this.endPosition = this.writerPosition;
+		headerDirty = true;
+	}
+
+	/**
+	 * 记录文件中第一条数据的序号，在写入数据之前调用。旧版本的文件头没有这个字段，直接忽略
+	 * 
+	 * @param sequence
+	 */
+	public void putBaseSequence(long sequence) {
+		if (version < 3) {
+			return;
+		}
+		writeCursor.putLong(BASE_SEQUENCE_OFFSET, sequence);
+		this.baseSequence = sequence;
+		headerDirty = true;
+	}
+
+	/**
+	 * @return 文件中第一条数据的序号，未知时为-1
+	 */
+	public long getBaseSequence() {
+		return this.baseSequence;
 	}
 
 	public boolean isFull(int increment) {
@@ -199,62 +433,554 @@ public class LogEntity {
 		return false;
 	}
 
+	public void setCodec(Codec codec) {
+		this.codec = codec;
+	}
+
+	public Codec getCodec() {
+		return codec;
+	}
+
+	/**
+	 * 按压缩方式编码一条数据，旧版本的数据头部没有属性字节，不压缩
+	 */
+	private byte[] encode(byte[] log) {
+		if (recordHeaderLength != RECORD_HEADER_LENGTH) {
+			return log;
+		}
+		return codec.encode(log);
+	}
+
 	public byte write(byte[] log) {
-		int increment = log.length + 4;
+		byte[] data = encode(log);
+		int increment = data.length + recordHeaderLength;
 		if (isFull(increment)) {
-			mappedByteBuffer.position(16);
-			mappedByteBuffer.putInt(this.writerPosition);
-			this.endPosition = this.writerPosition;
 			return WRITEFULL;
 		}
-		mappedByteBuffer.position(this.writerPosition);
-		mappedByteBuffer.putInt(log.length);
-		mappedByteBuffer.put(log);
+		putRecord(this.writerPosition, data, data == log ? 0 : codec.getId());
 		this.writerPosition += increment;
 		putWriterPosition(this.writerPosition);
+		markDirty();
 		return WRITESUCCESS;
 	}
 
-	public byte[] readNextAndRemove() throws FileEOFException {
-		if (this.endPosition != -1 && this.readerPosition >= this.endPosition) {
-			throw new FileEOFException("file eof");
+	/**
+	 * 从from开始连续写入一批数据，写位置只在最后记录一次。当前文件写满时停止
+	 * 
+	 * @param logs
+	 * @param from
+	 * @return 本次写入的条数
+	 */
+	public int write(List<byte[]> logs, int from) {
+		long position = this.writerPosition;
+		int i = from;
+		for (int count = logs.size(); i < count; i++) {
+			byte[] log = logs.get(i);
+			byte[] data = encode(log);
+			int increment = data.length + recordHeaderLength;
+			if (this.fileLimitLength < position + increment) {
+				break;
+			}
+			putRecord(position, data, data == log ? 0 : codec.getId());
+			position += increment;
+		}
+		if (position != this.writerPosition) {
+			this.writerPosition = position;
+			putWriterPosition(position);
+			markDirty();
+		}
+		return i - from;
+	}
+
+	/**
+	 * 在position处写入一条数据
+	 * 
+	 * @param position
+	 * @param log
+	 * @param attributes
+	 *            低3位为压缩方式
+	 */
+	private void putRecord(long position, byte[] log, byte attributes) {
+		writeCursor.putInt(position, log.length);
+		if (recordHeaderLength == RECORD_HEADER_LENGTH) {
+			writeCursor.put(position + 4, attributes);
+			writeCursor.putInt(position + 5, checksum(writeCrc, writeScratch, log.length, attributes, log));
+		}
+		writeCursor.put(position + recordHeaderLength, log, 0, log.length);
+	}
+
+	/**
+	 * 计算一条数据的校验值，文件编号也参与计算，其他文件中残留的数据不会被当成有效数据
+	 */
+	private int checksum(CRC32 crc, byte[] scratch, int length, byte attributes, byte[] data) {
+		return checksum(crc, scratch, length, attributes, data, length);
+	}
+
+	private int checksum(CRC32 crc, byte[] scratch, int length, byte attributes, byte[] data, int dataLength) {
+		return checksum(crc, scratch, this.currentFileNumber, length, attributes, data, dataLength);
+	}
+
+	static int checksum(CRC32 crc, byte[] scratch, int fileNumber, int length, byte attributes, byte[] data,
+			int dataLength) {
+		checksumHeader(crc, scratch, fileNumber, length, attributes);
+		crc.update(data, 0, dataLength);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * 重置crc并计入数据头部参与校验的部分，之后再计入数据本身
+	 */
+	private static void checksumHeader(CRC32 crc, byte[] scratch, int fileNumber, int length, byte attributes) {
+		scratch[0] = (byte) (fileNumber >>> 24);
+		scratch[1] = (byte) (fileNumber >>> 16);
+		scratch[2] = (byte) (fileNumber >>> 8);
+		scratch[3] = (byte) fileNumber;
+		scratch[4] = (byte) (length >>> 24);
+		scratch[5] = (byte) (length >>> 16);
+		scratch[6] = (byte) (length >>> 8);
+		scratch[7] = (byte) length;
+		scratch[8] = attributes;
+		crc.reset();
+		crc.update(scratch, 0, scratch.length);
+	}
+
+	/**
+	 * 读取position处的一条数据在文件中存放的内容，长度越界或者校验失败时返回null
+	 * 
+	 * @param position
+	 * @param limit
+	 *            可读数据的结束位置
+	 * @return
+	 */
+	private byte[] readRecord(long position, long limit) {
+		if (limit - position < recordHeaderLength) {
+			return null;
 		}
-		// readerPosition must be less than writerPosition
-		if (this.readerPosition >= this.writerPosition) {
+		int length = readCursor.getInt(position);
+		if (length < 0 || length > limit - position - recordHeaderLength) {
 			return null;
 		}
-		mappedByteBuffer.position(this.readerPosition);
-		int length = mappedByteBuffer.getInt();
 		byte[] b = new byte[length];
-		this.readerPosition += length + 4;
-		mappedByteBuffer.get(b);
-		putReaderPosition(this.readerPosition);
+		readCursor.get(position + recordHeaderLength, b, 0, length);
+		if (recordHeaderLength == RECORD_HEADER_LENGTH_V1) {
+			return b;
+		}
+		byte attributes = readCursor.get(position + 4);
+		int crc = readCursor.getInt(position + 5);
+		if (checksum(readCrc, readScratch, length, attributes, b) != crc) {
+			return null;
+		}
 		return b;
 	}
 
-	public void close() {
+	/**
+	 * 按position处数据的属性解压readRecord读到的内容
+	 * 
+	 * @param position
+	 * @param stored
+	 * @return 无法解压时返回null，和损坏的数据一样跳过，不把压缩的内容交给调用者
+	 */
+	private byte[] decode(long position, byte[] stored) {
+		if (recordHeaderLength != RECORD_HEADER_LENGTH) {
+			return stored;
+		}
 		try {
-		    if(mappedByteBuffer==null){
+			return Codec.decode(readCursor.get(position + 4), stored);
+		} catch (IllegalArgumentException e) {
+			log.error("undecodable record in file " + currentFileNumber + " at position " + position + ", skip it", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 跳过无法解压的一条数据。数据通过了校验，长度可信，只跳过这一条
+	 * 
+	 * @param position
+	 * @param length
+	 *            数据在文件中占用的字节数，包括头部
+	 */
+	private void skipUndecodable(long position, int length) {
+		this.readerPosition = position + length;
+		putReaderPosition(this.readerPosition);
+		skippedRecords++;
+	}
+
+	/**
+	 * 取出上次调用之后读线程跳过的无法解压的条数并清零，由FSQueue计入已读
+	 * 
+	 * @return
+	 */
+	public int takeSkippedRecords() {
+		int n = skippedRecords;
+		skippedRecords = 0;
+		return n;
+	}
+
+	/**
+	 * 读位置处的数据损坏，之后数据的位置无法从这里确定。只记录位置，同一个位置只记录一次日志
+	 * 
+	 * @param position
+	 */
+	private void markCorrupted(long position) {
+		if (corruptedPosition != position) {
+			corruptedPosition = position;
+			log.error("corrupted record in file " + currentFileNumber + " at position " + position);
+		}
+	}
+
+	/**
+	 * @return 读位置处的数据已经确认损坏时返回读位置，否则返回-1
+	 */
+	public long getCorruptedPosition() {
+		return corruptedPosition == this.readerPosition ? corruptedPosition : -1;
+	}
+
+	/**
+	 * 从损坏的数据跳到target，target是之后一条完整数据的起始位置，或者写满的文件的结尾。只由读线程调用
+	 * 
+	 * @param target
+	 */
+	public void skipCorrupted(long target) {
+		log.error("skip corrupted records in file " + currentFileNumber + " from " + readerPosition + " to "
+				+ target);
+		this.readerPosition = target;
+		putReaderPosition(target);
+		corruptedPosition = -1;
+	}
+
+	/**
+	 * 崩溃恢复时检查的结果
+	 */
+	public static class ScanResult {
+		/**
+		 * 最后一条完整数据的结束位置
+		 */
+		public long end;
+		/**
+		 * 文件中完整数据的条数
+		 */
+		public long records;
+		/**
+		 * mark对齐到数据边界后的位置，以及它之前的数据条数
+		 */
+		public long markPosition;
+		public long markRecords;
+	}
+
+	/**
+	 * 崩溃恢复时从文件开始检查数据。checkpoint之前的数据已经刷盘，只检查长度；之后的数据逐条校验，
+	 * 第一条不完整的数据所在的位置就是文件真正的结尾。旧版本的文件没有校验值，只检查到写位置
+	 * 
+	 * @param checkpoint
+	 *            已经刷盘的位置
+	 * @param mark
+	 *            需要统计之前数据条数的位置，用于恢复读位置
+	 * @return
+	 */
+	public ScanResult scan(long checkpoint, long mark) {
+		ScanResult result = new ScanResult();
+		long limit = recordHeaderLength == RECORD_HEADER_LENGTH ? this.fileLimitLength : this.writerPosition;
+		long position = dataStart;
+		long records = 0;
+		byte[] data = new byte[1024];
+		result.markRecords = -1;
+		while (true) {
+			if (result.markRecords < 0 && position >= mark) {
+				result.markPosition = position;
+				result.markRecords = records;
+			}
+			if (limit - position < recordHeaderLength) {
+				break;
+			}
+			int length = readCursor.getInt(position);
+			if (length < 0 || length > limit - position - recordHeaderLength) {
+				break;
+			}
+			if (position >= checkpoint && recordHeaderLength == RECORD_HEADER_LENGTH) {
+				if (data.length < length) {
+					data = new byte[Math.max(length, data.length * 2)];
+				}
+				byte attributes = readCursor.get(position + 4);
+				int crc = readCursor.getInt(position + 5);
+				readCursor.get(position + RECORD_HEADER_LENGTH, data, 0, length);
+				if (checksum(readCrc, readScratch, length, attributes, data, length) != crc) {
+					break;
+				}
+			}
+			position += length + recordHeaderLength;
+			records++;
+		}
+		// 读位置超过了文件结尾，退回到结尾
+		if (result.markRecords < 0) {
+			result.markPosition = position;
+			result.markRecords = records;
+		}
+		result.end = position;
+		result.records = records;
+		return result;
+	}
+
+	/**
+	 * 崩溃恢复后把写位置设置为检查得到的结尾，之后的不完整数据会被新数据覆盖
+	 * 
+	 * @param position
+	 */
+	public void truncate(long position) {
+		this.writerPosition = position;
+		this.syncedPosition = position;
+		putWriterPosition(position);
+	}
+
+	/**
+	 * 崩溃恢复时封闭一个没有写入结束位置的文件
+	 * 
+	 * @param position
+	 *            文件的结尾
+	 * @param next
+	 *            下一个文件编号
+	 */
+	public void seal(long position, int next) {
+		this.writerPosition = position;
+		putNextFile(next);
+		putEndPosition();
+	}
+
+	/**
+	 * @return 文件中的数据是否带有校验值
+	 */
+	public boolean hasChecksum() {
+		return recordHeaderLength == RECORD_HEADER_LENGTH;
+	}
+
+	public byte[] readNextAndRemove() throws FileEOFException {
+		return readNext(true);
+	}
+
+	/**
+	 * 读取下一条数据但不移动读位置，读到损坏的数据时和readNextAndRemove一样跳过
+	 * 
+	 * @return
+	 * @throws FileEOFException
+	 *             文件已经读完
+	 */
+	public byte[] peekNext() throws FileEOFException {
+		return readNext(false);
+	}
+
+	private byte[] readNext(boolean remove) throws FileEOFException {
+		while (true) {
+			if (this.endPosition != -1 && this.readerPosition >= this.endPosition) {
+				throw new FileEOFException("file eof");
+			}
+			long end = this.endPosition;
+			long limit = end != -1 ? end : this.writerPosition;
+			// readerPosition must be less than writerPosition
+			if (this.readerPosition >= limit) {
+				return null;
+			}
+			long position = this.readerPosition;
+			byte[] b = readRecord(position, limit);
+			if (b == null) {
+				markCorrupted(position);
+				return null;
+			}
+			byte[] data = decode(position, b);
+			if (data == null) {
+				skipUndecodable(position, b.length + recordHeaderLength);
+				continue;
+			}
+			if (remove) {
+				this.readerPosition += b.length + recordHeaderLength;
+				putReaderPosition(this.readerPosition);
+			}
+			return data;
+		}
+	}
+
+	/**
+	 * 把[from, to)的数据预读到page cache，可以在其他线程中调用
+	 *
+	 * @param from
+	 * @param to
+	 */
+	public void readAhead(long from, long to) {
+		SegmentBuffer current = buffer;
+		// 文件已经关闭时不再预读
+		if (current != null) {
+			current.load(from, to);
+		}
+	}
+
+	/**
+	 * 后台打开文件的线程在交给读线程之前调用，映射读位置所在的窗口，并预读之后length个字节的数据
+	 *
+	 * @param length
+	 */
+	public void prepareRead(long length) {
+		long end = this.endPosition;
+		long limit = end != -1 ? end : this.writerPosition;
+		if (this.readerPosition < limit) {
+			readCursor.get(this.readerPosition);
+			readAhead(this.readerPosition, Math.min(limit, this.readerPosition + length));
+		}
+	}
+
+	/**
+	 * 内存中已经有读位置处这条数据的副本时调用，直接把读位置移到它之后，不再读取映射内存。只由读线程调用
+	 *
+	 * @param position
+	 *            数据的起始位置
+	 * @param length
+	 *            数据在文件中占用的字节数，包括头部
+	 * @return 读位置不在position，或者数据不在可读范围内时返回false
+	 */
+	public boolean skip(long position, int length) {
+		long end = this.endPosition;
+		long limit = end != -1 ? end : this.writerPosition;
+		if (this.readerPosition != position || position + length > limit) {
+			return false;
+		}
+		this.readerPosition = position + length;
+		putReaderPosition(this.readerPosition);
+		return true;
+	}
+
+	/**
+	 * 读取下一条数据并移动读位置，返回直接指向映射内存的只读视图，不为每条数据分配和复制数组。
+	 * 用完之后必须调用Slice.release，在此之前数据所在的窗口不会被解除映射。
+	 * 压缩的数据和跨越窗口的数据返回堆内存中的视图
+	 * 
+	 * @return
+	 * @throws FileEOFException
+	 *             文件已经读完
+	 */
+	public SegmentBuffer.Slice readNextSliceAndRemove() throws FileEOFException {
+		while (true) {
+			if (this.endPosition != -1 && this.readerPosition >= this.endPosition) {
+				throw new FileEOFException("file eof");
+			}
+			long end = this.endPosition;
+			long limit = end != -1 ? end : this.writerPosition;
+			long position = this.readerPosition;
+			if (position >= limit) {
+				return null;
+			}
+			int length = checkRecord(position, limit);
+			if (length < 0) {
+				markCorrupted(position);
+				return null;
+			}
+			SegmentBuffer.Slice slice;
+			if (recordHeaderLength == RECORD_HEADER_LENGTH && (readCursor.get(position + 4) & Codec.MASK) != 0) {
+				byte[] b = new byte[length];
+				readCursor.get(position + recordHeaderLength, b, 0, length);
+				byte[] data = decode(position, b);
+				if (data == null) {
+					skipUndecodable(position, length + recordHeaderLength);
+					continue;
+				}
+				slice = SegmentBuffer.Slice.wrap(data);
+			} else {
+				slice = readCursor.slice(position + recordHeaderLength, length);
+			}
+			this.readerPosition = position + length + recordHeaderLength;
+			putReaderPosition(this.readerPosition);
+			return slice;
+		}
+	}
+
+	/**
+	 * 在映射中直接校验position处的一条数据
+	 * 
+	 * @return 数据的长度，长度越界或者校验失败时返回-1
+	 */
+	private int checkRecord(long position, long limit) {
+		if (limit - position < recordHeaderLength) {
+			return -1;
+		}
+		int length = readCursor.getInt(position);
+		if (length < 0 || length > limit - position - recordHeaderLength) {
+			return -1;
+		}
+		if (recordHeaderLength == RECORD_HEADER_LENGTH_V1) {
+			return length;
+		}
+		if (readChunk == null) {
+			readChunk = new byte[8192];
+		}
+		checksumHeader(readCrc, readScratch, currentFileNumber, length, readCursor.get(position + 4));
+		long from = position + recordHeaderLength;
+		for (int remaining = length; remaining > 0;) {
+			int n = Math.min(remaining, readChunk.length);
+			readCursor.get(from, readChunk, 0, n);
+			readCrc.update(readChunk, 0, n);
+			from += n;
+			remaining -= n;
+		}
+		return (int) readCrc.getValue() == readCursor.getInt(position + 5) ? length : -1;
+	}
+
+	/**
+	 * 从当前文件连续读取多条数据，读位置只在最后记录一次。读取条数达到maxCount或者累计字节数达到maxBytes后停止
+	 * 
+	 * @param list
+	 * @param maxCount
+	 * @param maxBytes
+	 * @return 本次读取的条数
+	 * @throws FileEOFException
+	 *             文件已经读完
+	 */
+	public int readBatchAndRemove(List<byte[]> list, int maxCount, int maxBytes) throws FileEOFException {
+		if (this.endPosition != -1 && this.readerPosition >= this.endPosition) {
+			throw new FileEOFException("file eof");
+		}
+		long position = this.readerPosition;
+		long end = this.endPosition;
+		long limit = end != -1 ? end : this.writerPosition;
+		int count = 0;
+		int bytes = 0;
+		int undecodable = 0;
+		boolean corrupted = false;
+		while (position < limit && count < maxCount && bytes < maxBytes) {
+			byte[] b = readRecord(position, limit);
+			if (b == null) {
+				corrupted = true;
+				break;
+			}
+			byte[] data = decode(position, b);
+			position += b.length + recordHeaderLength;
+			if (data == null) {
+				undecodable++;
+				continue;
+			}
+			list.add(data);
+			bytes += data.length;
+			count++;
+		}
+		if (count > 0 || undecodable > 0) {
+			this.readerPosition = position;
+			putReaderPosition(position);
+			skippedRecords += undecodable;
+		}
+		// 先返回已经读到的数据，下次读取时再由FSQueue跳过损坏的部分
+		if (corrupted && count == 0) {
+			markCorrupted(position);
+		}
+		return count;
+	}
+
+	public synchronized void close() {
+		try {
+		    if(buffer==null){
 		        return;
 		    }
-			mappedByteBuffer.force();
-			AccessController.doPrivileged(new PrivilegedAction<Object>() {
-				public Object run() {
-					try {
-						Method getCleanerMethod = mappedByteBuffer.getClass()
-								.getMethod("cleaner", new Class[0]);
-						getCleanerMethod.setAccessible(true);
-						sun.misc.Cleaner cleaner = (sun.misc.Cleaner) getCleanerMethod
-								.invoke(mappedByteBuffer, new Object[0]);
-						cleaner.clean();
-					} catch (Exception e) {
-						e.printStackTrace();
-					}
-					return null;
-				}
-			});
-			mappedByteBuffer = null;
-			executor.shutdown();
+			forceDirty();
+			buffer.close();
+			// 还有没释放的Slice时文件不能被回收重写
+			if (buffer.isUnmapped() == false) {
+				FileRunner.pin(file.getPath(), buffer);
+			}
+			buffer = null;
 			fc.close();
 			raFile.close();
 		} catch (IOException e) {
@@ -276,6 +1002,8 @@ public class LogEntity {
 		sb.append(nextFile);
 		sb.append(" endPosition:");
 		sb.append(endPosition);
+		sb.append(" baseSequence:");
+		sb.append(baseSequence);
 		sb.append(" currentFileNumber:");
 		sb.append(currentFileNumber);
 		return sb.toString();
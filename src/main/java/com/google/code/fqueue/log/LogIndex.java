@@ -19,13 +19,12 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.lang.reflect.Method;
-import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.security.AccessController;
 import java.security.PrivilegedAction;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -41,7 +40,32 @@ import com.google.code.fqueue.exception.FileFormatException;
  */
 public class LogIndex {
 	final Logger log = LoggerFactory.getLogger(LogIndex.class);
-	private final int dbFileLimitLength = 32;
+	public static final int VERSION = 5;
+	private final int dbFileLimitLength = 192;
+	/**
+	 * 写线程和读线程更新的字段分别放在不同的cache line上，避免两个线程互相使对方的缓存失效。
+	 * 版本5的位置和计数都是64位
+	 */
+	private static final int WRITER_INDEX_OFFSET = 64;
+	private static final int CHECKPOINT_INDEX_OFFSET = 68;
+	private static final int WRITER_POSITION_OFFSET = 72;
+	private static final int WRITE_COUNT_OFFSET = 80;
+	private static final int WRITE_BYTES_OFFSET = 88;
+	private static final int SEGMENT_BASE_COUNT_OFFSET = 96;
+	private static final int SEGMENT_BASE_BYTES_OFFSET = 104;
+	private static final int CHECKPOINT_POSITION_OFFSET = 112;
+	private static final int CHECKPOINT_INDEX_END_OFFSET = 120;
+	private static final int READER_INDEX_OFFSET = 128;
+	private static final int READER_POSITION_OFFSET = 136;
+	private static final int READ_COUNT_OFFSET = 144;
+	private static final int READ_BYTES_OFFSET = 152;
+	/**
+	 * putReader先把新的读文件和读位置写到这里，文件编号前后各写一次，完整写入后再修改读文件和读位置，最后清除结尾的编号。
+	 * 启动时这里的记录完整说明修改读文件和读位置时被中断，按这里的记录重新修改
+	 */
+	private static final int PENDING_READER_INDEX_OFFSET = 160;
+	private static final int PENDING_READER_INDEX_END_OFFSET = 164;
+	private static final int PENDING_READER_POSITION_OFFSET = 168;
 	private RandomAccessFile dbRandFile = null;
 	private FileChannel fc;
 	private MappedByteBuffer mappedByteBuffer;
@@ -51,55 +75,143 @@ public class LogIndex {
 	 */
 	private String magicString = null;
 	private int version = -1;
-	private int readerPosition = -1;
-	private int writerPosition = -1;
-	private int readerIndex = -1;
-	private int writerIndex = -1;
-	private AtomicInteger size = new AtomicInteger();
+	private volatile long readerPosition = -1;
+	private volatile long writerPosition = -1;
+	private volatile int readerIndex = -1;
+	private volatile int writerIndex = -1;
+	/**
+	 * 累计写入和读取的条数，队列大小为两者之差
+	 */
+	private final AtomicLong writeCount = new AtomicLong();
+	private final AtomicLong readCount = new AtomicLong();
+	/**
+	 * 累计写入和读取的数据文件字节数(包含每条数据的头)，积压的字节数为两者之差
+	 */
+	private final AtomicLong writeBytes = new AtomicLong();
+	private final AtomicLong readBytes = new AtomicLong();
+	/**
+	 * 从旧版本升级而来，积压字节数需要由FSQueue重新统计
+	 */
+	private boolean upgraded = false;
+	/**
+	 * 当前写文件之前累计写入的条数和字节数，崩溃恢复时加上扫描写文件得到的数据重新计算队列大小
+	 */
+	private long segmentBaseCount = 0;
+	private long segmentBaseBytes = 0;
+	/**
+	 * 从版本1升级的索引没有记录上面两个值
+	 */
+	private boolean segmentBaseKnown = true;
+	/**
+	 * 最近一次刷盘的文件编号和位置
+	 */
+	private int checkpointIndex = 0;
+	private long checkpointPosition = 0;
+	/**
+	 * 上次刷盘之后索引是否有更新
+	 */
+	private volatile boolean dirty = false;
 
 	public LogIndex(String path) throws IOException, FileFormatException {
 		File dbFile = new File(path);
-
-		// 文件不存在，创建文件
-		if (dbFile.exists() == false) {
+		boolean exists = dbFile.exists();
+		if (exists == false) {
 			dbFile.createNewFile();
-			dbRandFile = new RandomAccessFile(dbFile, "rwd");
-			dbRandFile.write(LogEntity.MAGIC.getBytes());// magic
-			dbRandFile.writeInt(1);// 8version
-			dbRandFile.writeInt(LogEntity.messageStartPosition);// 12 reader
-			// pos
-			dbRandFile.writeInt(LogEntity.messageStartPosition); // 16write
-			// pos
-			dbRandFile.writeInt(1);// 20readerindex
-			dbRandFile.writeInt(1);// 24writerindex
-			dbRandFile.writeInt(0);// 28 size
-			magicString = LogEntity.MAGIC;
-			version = 1;
+		}
+		dbRandFile = new RandomAccessFile(dbFile, "rwd");
+		if (exists && dbRandFile.length() < 32) {
+			throw new FileFormatException("file format error");
+		}
+		fc = dbRandFile.getChannel();
+		mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0, this.dbFileLimitLength);
+		// 文件不存在，创建文件
+		if (exists == false) {
 			readerPosition = LogEntity.messageStartPosition;
 			writerPosition = LogEntity.messageStartPosition;
 			readerIndex = 1;
 			writerIndex = 1;
+			writeAll();
 		} else {
-			dbRandFile = new RandomAccessFile(dbFile, "rwd");
-			if (dbRandFile.length() < 32) {
+			byte[] b = new byte[LogEntity.MAGIC.getBytes().length];
+			mappedByteBuffer.get(b);
+			magicString = new String(b);
+			if (magicString.equals(LogEntity.MAGIC) == false) {
 				throw new FileFormatException("file format error");
 			}
-			byte[] b = new byte[this.dbFileLimitLength];
-			dbRandFile.read(b);
-			ByteBuffer buffer = ByteBuffer.wrap(b);
-			b = new byte[LogEntity.MAGIC.getBytes().length];
-			buffer.get(b);
-			magicString = new String(b);
-			version = buffer.getInt();
-			readerPosition = buffer.getInt();
-			writerPosition = buffer.getInt();
-			readerIndex = buffer.getInt();
-			writerIndex = buffer.getInt();
-			size.set(buffer.getInt());
+			version = mappedByteBuffer.getInt();
+			// 新版本写入的索引文件格式未知，不能按当前格式解析；版本2到4没有发布过
+			if (version > VERSION || (version > 1 && version < VERSION)) {
+				throw new FileFormatException("unsupported index version:" + version);
+			}
+			if (version == 1) {
+				upgradeFromVersion1();
+			} else {
+				writerIndex = mappedByteBuffer.getInt(WRITER_INDEX_OFFSET);
+				writerPosition = mappedByteBuffer.getLong(WRITER_POSITION_OFFSET);
+				writeCount.set(mappedByteBuffer.getLong(WRITE_COUNT_OFFSET));
+				writeBytes.set(mappedByteBuffer.getLong(WRITE_BYTES_OFFSET));
+				segmentBaseCount = mappedByteBuffer.getLong(SEGMENT_BASE_COUNT_OFFSET);
+				segmentBaseBytes = mappedByteBuffer.getLong(SEGMENT_BASE_BYTES_OFFSET);
+				readerIndex = mappedByteBuffer.getInt(READER_INDEX_OFFSET);
+				readerPosition = mappedByteBuffer.getLong(READER_POSITION_OFFSET);
+				readCount.set(mappedByteBuffer.getLong(READ_COUNT_OFFSET));
+				readBytes.set(mappedByteBuffer.getLong(READ_BYTES_OFFSET));
+				int pending = mappedByteBuffer.getInt(PENDING_READER_INDEX_OFFSET);
+				if (pending > 0 && pending == mappedByteBuffer.getInt(PENDING_READER_INDEX_END_OFFSET)) {
+					putReader(pending, mappedByteBuffer.getLong(PENDING_READER_POSITION_OFFSET));
+					mappedByteBuffer.force();
+					log.warn("finish interrupted reader move to file " + readerIndex + " position " + readerPosition);
+				}
+				// 文件编号前后各写一次，两者不一致说明检查点的写入被中断，不可信
+				int index = mappedByteBuffer.getInt(CHECKPOINT_INDEX_OFFSET);
+				if (index == mappedByteBuffer.getInt(CHECKPOINT_INDEX_END_OFFSET)) {
+					checkpointIndex = index;
+					checkpointPosition = mappedByteBuffer.getLong(CHECKPOINT_POSITION_OFFSET);
+				}
+			}
+		}
+	}
 
+	/**
+	 * 旧版本的索引文件只有32字节，读写字段挨在一起，这里原地升级为新的格式
+	 */
+	private void upgradeFromVersion1() {
+		readerPosition = mappedByteBuffer.getInt(12);
+		writerPosition = mappedByteBuffer.getInt(16);
+		readerIndex = mappedByteBuffer.getInt(20);
+		writerIndex = mappedByteBuffer.getInt(24);
+		writeCount.set(mappedByteBuffer.getInt(28));
+		readCount.set(0);
+		upgraded = true;
+		segmentBaseKnown = false;
+		// 先写新位置的数据，最后才修改版本号，中途退出下次启动会重新升级
+		writeAll();
+		for (int i = 12; i < 32; i += 4) {
+			mappedByteBuffer.putInt(i, 0);
 		}
-		fc = dbRandFile.getChannel();
-		mappedByteBuffer = fc.map(MapMode.READ_WRITE, 0, this.dbFileLimitLength);
+		mappedByteBuffer.force();
+		log.info("upgrade index file from version 1 to version " + VERSION);
+	}
+
+	private void writeAll() {
+		mappedByteBuffer.putInt(WRITER_INDEX_OFFSET, writerIndex);
+		mappedByteBuffer.putLong(WRITER_POSITION_OFFSET, writerPosition);
+		mappedByteBuffer.putLong(WRITE_COUNT_OFFSET, writeCount.get());
+		mappedByteBuffer.putLong(WRITE_BYTES_OFFSET, writeBytes.get());
+		mappedByteBuffer.putInt(READER_INDEX_OFFSET, readerIndex);
+		mappedByteBuffer.putLong(READER_POSITION_OFFSET, readerPosition);
+		mappedByteBuffer.putLong(READ_COUNT_OFFSET, readCount.get());
+		mappedByteBuffer.putLong(READ_BYTES_OFFSET, readBytes.get());
+		mappedByteBuffer.putLong(SEGMENT_BASE_COUNT_OFFSET, segmentBaseCount);
+		mappedByteBuffer.putLong(SEGMENT_BASE_BYTES_OFFSET, segmentBaseBytes);
+		mappedByteBuffer.putInt(CHECKPOINT_INDEX_OFFSET, checkpointIndex);
+		mappedByteBuffer.putLong(CHECKPOINT_POSITION_OFFSET, checkpointPosition);
+		mappedByteBuffer.putInt(CHECKPOINT_INDEX_END_OFFSET, checkpointIndex);
+		mappedByteBuffer.position(0);
+		mappedByteBuffer.put(LogEntity.MAGIC.getBytes());
+		mappedByteBuffer.putInt(VERSION);
+		magicString = LogEntity.MAGIC;
+		version = VERSION;
 	}
 
 	/**
@@ -107,10 +219,10 @@ public class LogIndex {
 	 * 
 	 * @param pos
 	 */
-	public void putWriterPosition(int pos) {
-		mappedByteBuffer.position(16);
-		mappedByteBuffer.putInt(pos);
+	public void putWriterPosition(long pos) {
+		mappedByteBuffer.putLong(WRITER_POSITION_OFFSET, pos);
 		this.writerPosition = pos;
+		dirty = true;
 	}
 
 	/**
@@ -118,10 +230,10 @@ public class LogIndex {
 	 * 
 	 * @param pos
 	 */
-	public void putReaderPosition(int pos) {
-		mappedByteBuffer.position(12);
-		mappedByteBuffer.putInt(pos);
+	public void putReaderPosition(long pos) {
+		mappedByteBuffer.putLong(READER_POSITION_OFFSET, pos);
 		this.readerPosition = pos;
+		dirty = true;
 	}
 
 	/**
@@ -130,9 +242,9 @@ public class LogIndex {
 	 * @param index
 	 */
 	public void putWriterIndex(int index) {
-		mappedByteBuffer.position(24);
-		mappedByteBuffer.putInt(index);
+		mappedByteBuffer.putInt(WRITER_INDEX_OFFSET, index);
 		this.writerIndex = index;
+		dirty = true;
 	}
 
 	/**
@@ -141,21 +253,177 @@ public class LogIndex {
 	 * @param index
 	 */
 	public void putReaderIndex(int index) {
-		mappedByteBuffer.position(20);
-		mappedByteBuffer.putInt(index);
+		mappedByteBuffer.putInt(READER_INDEX_OFFSET, index);
+		this.readerIndex = index;
+		dirty = true;
+	}
+
+	/**
+	 * 同时修改读取文件索引和读取位置，切换或者移动读文件时使用。两个字段分开写入，先完整记录到备用的位置，
+	 * 中途退出时下次启动按备用位置的记录完成修改，不会留下新文件和旧位置的组合
+	 * 
+	 * @param index
+	 * @param pos
+	 */
+	public void putReader(int index, long pos) {
+		mappedByteBuffer.putInt(PENDING_READER_INDEX_OFFSET, index);
+		mappedByteBuffer.putLong(PENDING_READER_POSITION_OFFSET, pos);
+		mappedByteBuffer.putInt(PENDING_READER_INDEX_END_OFFSET, index);
+		mappedByteBuffer.putLong(READER_POSITION_OFFSET, pos);
+		mappedByteBuffer.putInt(READER_INDEX_OFFSET, index);
+		mappedByteBuffer.putInt(PENDING_READER_INDEX_END_OFFSET, 0);
+		this.readerPosition = pos;
 		this.readerIndex = index;
+		dirty = true;
 	}
 
-	public void incrementSize() {
-		int num = size.incrementAndGet();
-		mappedByteBuffer.position(28);
-		mappedByteBuffer.putInt(num);
+	/**
+	 * 增加累计写入条数和字节数，只由写线程调用。先增加条数再增加字节数，读线程看到字节数和写位置一致时，
+	 * 对应的条数已经计入
+	 *
+	 * @param delta
+	 * @param bytes
+	 */
+	public void addWriteCount(int delta, long bytes) {
+		mappedByteBuffer.putLong(WRITE_COUNT_OFFSET, writeCount.addAndGet(delta));
+		mappedByteBuffer.putLong(WRITE_BYTES_OFFSET, writeBytes.addAndGet(bytes));
+		dirty = true;
 	}
 
-	public void decrementSize() {
-		int num = size.decrementAndGet();
-		mappedByteBuffer.position(28);
-		mappedByteBuffer.putInt(num);
+	/**
+	 * 增加累计读取条数和字节数，只由读线程调用
+	 * 
+	 * @param delta
+	 * @param bytes
+	 */
+	public void addReadCount(int delta, long bytes) {
+		mappedByteBuffer.putLong(READ_BYTES_OFFSET, readBytes.addAndGet(bytes));
+		mappedByteBuffer.putLong(READ_COUNT_OFFSET, readCount.addAndGet(delta));
+		dirty = true;
+	}
+
+	/**
+	 * 重新设置累计读取条数和字节数，用于移动读位置，只由读线程调用
+	 * 
+	 * @param count
+	 * @param bytes
+	 */
+	public void putReadCount(long count, long bytes) {
+		mappedByteBuffer.putLong(READ_BYTES_OFFSET, bytes);
+		mappedByteBuffer.putLong(READ_COUNT_OFFSET, count);
+		readBytes.set(bytes);
+		readCount.set(count);
+		dirty = true;
+	}
+
+	/**
+	 * 重新设置积压的字节数，用于从旧版本升级时
+	 * 
+	 * @param bytes
+	 */
+	public void putBacklogBytes(long bytes) {
+		readBytes.set(0);
+		writeBytes.set(bytes);
+		mappedByteBuffer.putLong(READ_BYTES_OFFSET, 0);
+		mappedByteBuffer.putLong(WRITE_BYTES_OFFSET, bytes);
+		dirty = true;
+		upgraded = false;
+	}
+
+	/**
+	 * 写线程切换到新文件时记录新文件之前累计写入的条数和字节数
+	 * 
+	 * @param count
+	 * @param bytes
+	 */
+	public void putSegmentBase(long count, long bytes) {
+		mappedByteBuffer.putLong(SEGMENT_BASE_BYTES_OFFSET, bytes);
+		mappedByteBuffer.putLong(SEGMENT_BASE_COUNT_OFFSET, count);
+		this.segmentBaseBytes = bytes;
+		this.segmentBaseCount = count;
+		this.segmentBaseKnown = true;
+		dirty = true;
+	}
+
+	/**
+	 * 记录已经刷盘的位置。刷盘可能在不同线程中进行，只允许向前移动。
+	 * 文件编号在位置前后各写一次，写到一半时中断的检查点在下次启动时会被丢弃
+	 * 
+	 * @param fileNumber
+	 * @param position
+	 */
+	public synchronized void putCheckpoint(int fileNumber, long position) {
+		if (fileNumber > checkpointIndex || (fileNumber == checkpointIndex && position > checkpointPosition)) {
+			if (fileNumber != checkpointIndex) {
+				mappedByteBuffer.putInt(CHECKPOINT_INDEX_OFFSET, fileNumber);
+			}
+			mappedByteBuffer.putLong(CHECKPOINT_POSITION_OFFSET, position);
+			mappedByteBuffer.putInt(CHECKPOINT_INDEX_END_OFFSET, fileNumber);
+			checkpointIndex = fileNumber;
+			checkpointPosition = position;
+			dirty = true;
+		}
+	}
+
+	/**
+	 * 崩溃恢复后重新设置读写位置和计数
+	 */
+	public void recover(long writerPosition, long writeCount, long writeBytes, long readerPosition, long readCount,
+			long readBytes) {
+		this.writerPosition = writerPosition;
+		this.readerPosition = readerPosition;
+		this.writeCount.set(writeCount);
+		this.writeBytes.set(writeBytes);
+		this.readCount.set(readCount);
+		this.readBytes.set(readBytes);
+		writeAll();
+		dirty = true;
+	}
+
+	public long getSegmentBaseCount() {
+		return segmentBaseCount;
+	}
+
+	public long getSegmentBaseBytes() {
+		return segmentBaseBytes;
+	}
+
+	public boolean isSegmentBaseKnown() {
+		return segmentBaseKnown;
+	}
+
+	public synchronized int getCheckpointIndex() {
+		return checkpointIndex;
+	}
+
+	public synchronized long getCheckpointPosition() {
+		return checkpointPosition;
+	}
+
+	/**
+	 * @return 累计写入的条数，也是下一条写入数据的序号
+	 */
+	public long getWriteCount() {
+		return writeCount.get();
+	}
+
+	/**
+	 * @return 累计读取的条数，也是下一条读取数据的序号
+	 */
+	public long getReadCount() {
+		return readCount.get();
+	}
+
+	public long getWriteBytes() {
+		return writeBytes.get();
+	}
+
+	public long getReadBytes() {
+		return readBytes.get();
+	}
+
+	public boolean isUpgraded() {
+		return upgraded;
 	}
 
 	public String getMagicString() {
@@ -166,11 +434,11 @@ public class LogIndex {
 		return version;
 	}
 
-	public int getReaderPosition() {
+	public long getReaderPosition() {
 		return readerPosition;
 	}
 
-	public int getWriterPosition() {
+	public long getWriterPosition() {
 		return writerPosition;
 	}
 
@@ -182,8 +450,31 @@ public class LogIndex {
 		return writerIndex;
 	}
 
-	public int getSize() {
-		return size.get();
+	public long getSize() {
+		// 先读readCount，保证结果不会小于0
+		long read = readCount.get();
+		return writeCount.get() - read;
+	}
+
+	/**
+	 * 积压的数据占用的数据文件字节数
+	 * 
+	 * @return
+	 */
+	public long getBacklogBytes() {
+		long read = readBytes.get();
+		return writeBytes.get() - read;
+	}
+
+	/**
+	 * 索引有更新时刷盘
+	 */
+	public void flush() {
+		MappedByteBuffer buffer = mappedByteBuffer;
+		if (dirty && buffer != null) {
+			dirty = false;
+			buffer.force();
+		}
 	}
 
 	/**
@@ -227,7 +518,9 @@ public class LogIndex {
 		sb.append(" writerPosition:");
 		sb.append(writerPosition);
 		sb.append(" size:");
-		sb.append(size);
+		sb.append(getSize());
+		sb.append(" backlogBytes:");
+		sb.append(getBacklogBytes());
 		sb.append(" readerIndex:");
 		sb.append(readerIndex);
 		sb.append(" writerIndex:");
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.Locale;
+
+/**
+ * 积压数据的字节数限额，以及超过限额时的处理方式：reject拒绝写入，block等待消费者腾出空间，
+ * drop丢弃最旧的数据。配置格式为 bytes:字节数,action:reject|block|drop,timeout:毫秒数，
+ * timeout是block最多等待的时间，超时后拒绝写入
+ *
+ *@author sunli
+ *@date 2011-5-18
+ *@version $Id$
+ */
+public class QuotaPolicy {
+	public enum Action {
+		REJECT, BLOCK, DROP
+	}
+
+	/**
+	 * 不限制
+	 */
+	public static final QuotaPolicy NONE = new QuotaPolicy(0, Action.REJECT, 0);
+	public static final long DEFAULT_TIMEOUT = 10000;
+
+	private final long maxBytes;
+	private final Action action;
+	private final long timeout;
+
+	private QuotaPolicy(long maxBytes, Action action, long timeout) {
+		this.maxBytes = maxBytes;
+		this.action = action;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @param maxBytes
+	 *            积压的字节数限额，0表示不限制
+	 * @param action
+	 * @param timeout
+	 *            block最多等待的毫秒数
+	 * @return
+	 */
+	public static QuotaPolicy of(long maxBytes, Action action, long timeout) {
+		if (maxBytes < 0 || timeout < 0) {
+			throw new IllegalArgumentException("quota policy value must not be negative");
+		}
+		if (maxBytes == 0) {
+			return NONE;
+		}
+		return new QuotaPolicy(maxBytes, action, timeout);
+	}
+
+	/**
+	 * 解析配置，例如 bytes:1073741824,action:block,timeout:5000，为空时返回NONE
+	 *
+	 * @param setting
+	 * @return
+	 */
+	public static QuotaPolicy parse(String setting) {
+		if (setting == null || setting.trim().length() == 0) {
+			return NONE;
+		}
+		long maxBytes = 0;
+		Action action = Action.REJECT;
+		long timeout = DEFAULT_TIMEOUT;
+		String[] items = setting.trim().split(",");
+		for (int i = 0; i < items.length; i++) {
+			String[] item = items[i].trim().split(":");
+			if (item.length != 2) {
+				throw new IllegalArgumentException("quota policy need a value:" + setting);
+			}
+			String name = item[0].trim().toLowerCase(Locale.ENGLISH);
+			String value = item[1].trim();
+			if ("bytes".equals(name)) {
+				maxBytes = Long.parseLong(value);
+			} else if ("action".equals(name)) {
+				try {
+					action = Action.valueOf(value.toUpperCase(Locale.ENGLISH));
+				} catch (IllegalArgumentException e) {
+					throw new IllegalArgumentException("unknown quota action:" + setting);
+				}
+			} else if ("timeout".equals(name)) {
+				timeout = Long.parseLong(value);
+			} else {
+				throw new IllegalArgumentException("unknown quota policy:" + setting);
+			}
+		}
+		return of(maxBytes, action, timeout);
+	}
+
+	public boolean isEnabled() {
+		return this != NONE;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public Action getAction() {
+		return action;
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	/**
+	 * 积压bytes字节时是否已经达到限额
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public boolean isExceeded(long bytes) {
+		return maxBytes > 0 && bytes >= maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		if (this == NONE) {
+			return "none";
+		}
+		String s = "bytes:" + maxBytes + ",action:" + action.name().toLowerCase(Locale.ENGLISH);
+		return action == Action.BLOCK ? s + ",timeout:" + timeout : s;
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.Locale;
+
+/**
+ * 已经读完的数据文件的保留策略。配置格式为 age:毫秒数、bytes:字节数，两者可以用逗号分隔同时设置，
+ * 超过任何一个限制的文件从最旧的开始删除。没有设置时读完立即删除
+ *
+ *@author sunli
+ *@date 2011-5-18
+ *@version $Id$
+ */
+public class RetentionPolicy {
+	/**
+	 * 不保留，读完立即删除，和以前的行为一致
+	 */
+	public static final RetentionPolicy NONE = new RetentionPolicy(0, 0);
+
+	private final long maxAge;
+	private final long maxBytes;
+
+	private RetentionPolicy(long maxAge, long maxBytes) {
+		this.maxAge = maxAge;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @param maxAge
+	 *            文件最后一次写入之后保留的毫秒数，0表示不按时间限制
+	 * @param maxBytes
+	 *            保留的文件总字节数，0表示不按大小限制
+	 * @return
+	 */
+	public static RetentionPolicy of(long maxAge, long maxBytes) {
+		if (maxAge < 0 || maxBytes < 0) {
+			throw new IllegalArgumentException("retention policy value must not be negative");
+		}
+		if (maxAge == 0 && maxBytes == 0) {
+			return NONE;
+		}
+		return new RetentionPolicy(maxAge, maxBytes);
+	}
+
+	/**
+	 * 解析配置，例如 age:3600000,bytes:1073741824，为空时返回NONE
+	 *
+	 * @param setting
+	 * @return
+	 */
+	public static RetentionPolicy parse(String setting) {
+		if (setting == null || setting.trim().length() == 0) {
+			return NONE;
+		}
+		long maxAge = 0;
+		long maxBytes = 0;
+		String[] items = setting.trim().split(",");
+		for (int i = 0; i < items.length; i++) {
+			String[] item = items[i].trim().split(":");
+			if (item.length != 2) {
+				throw new IllegalArgumentException("retention policy need a value:" + setting);
+			}
+			String name = item[0].trim().toLowerCase(Locale.ENGLISH);
+			long value = Long.parseLong(item[1].trim());
+			if ("age".equals(name)) {
+				maxAge = value;
+			} else if ("bytes".equals(name)) {
+				maxBytes = value;
+			} else {
+				throw new IllegalArgumentException("unknown retention policy:" + setting);
+			}
+		}
+		return of(maxAge, maxBytes);
+	}
+
+	public boolean isEnabled() {
+		return this != NONE;
+	}
+
+	public long getMaxAge() {
+		return maxAge;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * 按时间是否已经过期
+	 *
+	 * @param lastModified
+	 * @param now
+	 * @return
+	 */
+	public boolean isExpired(long lastModified, long now) {
+		return maxAge > 0 && now - lastModified >= maxAge;
+	}
+
+	/**
+	 * 按大小是否超过限制
+	 *
+	 * @param bytes
+	 * @return
+	 */
+	public boolean isOversized(long bytes) {
+		return maxBytes > 0 && bytes > maxBytes;
+	}
+
+	@Override
+	public String toString() {
+		if (this == NONE) {
+			return "none";
+		}
+		StringBuilder sb = new StringBuilder();
+		if (maxAge > 0) {
+			sb.append("age:").append(maxAge);
+		}
+		if (maxBytes > 0) {
+			if (sb.length() > 0) {
+				sb.append(',');
+			}
+			sb.append("bytes:").append(maxBytes);
+		}
+		return sb.toString();
+	}
+}
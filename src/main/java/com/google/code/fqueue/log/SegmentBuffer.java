@@ -0,0 +1,454 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.code.fqueue.util.MappedByteBufferUtil;
+
+/**
+ * 数据文件的内存映射。文件不再整体映射，每个读写视图只映射当前位置所在的一个固定大小的窗口，
+ * 位置移出窗口时解除旧窗口的映射再映射新窗口，占用的地址空间和页表只和正在读写的位置有关。
+ * 相邻窗口重叠8个字节，不超过8字节的数值总是可以在一个窗口内读写。
+ * 窗口大小可以通过系统属性fqueue.window.size设置，默认为8M。
+ * 窗口有引用计数，视图移走之后还有没释放的Slice时，等最后一个Slice释放再解除映射
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public class SegmentBuffer {
+	private static final Logger log = LoggerFactory.getLogger(SegmentBuffer.class);
+	public static final int MAX_WINDOW_SIZE = 1 << 30;
+	private static final int PAGE_SIZE = 4096;
+	public static final int DEFAULT_WINDOW_SIZE = alignWindowSize(Integer.getInteger("fqueue.window.size",
+			8 * 1024 * 1024));
+	private static final int OVERLAP = 8;
+	/**
+	 * 进程内当前映射的窗口数和字节数，以及累计映射的次数
+	 */
+	private static final AtomicLong mappedWindows = new AtomicLong();
+	private static final AtomicLong mappedBytes = new AtomicLong();
+	private static final AtomicLong mapCount = new AtomicLong();
+	private static final AtomicLong openSlices = new AtomicLong();
+	/**
+	 * 进程内预读的字节数
+	 */
+	private static final AtomicLong loadedBytes = new AtomicLong();
+	private final FileChannel fc;
+	private final long length;
+	private final int windowSize;
+	private final MapMode mode;
+	private final List<Cursor> cursors = new ArrayList<Cursor>(2);
+	/**
+	 * 刷盘用的视图，只在force中使用，刷盘位置移到下一个窗口时才重新映射
+	 */
+	private Cursor flushCursor;
+	/**
+	 * 本实例还没有解除映射的窗口数，包括被Slice引用的窗口
+	 */
+	private final AtomicInteger liveWindows = new AtomicInteger();
+
+	public SegmentBuffer(FileChannel fc, long length) {
+		this(fc, length, DEFAULT_WINDOW_SIZE, false);
+	}
+
+	public SegmentBuffer(FileChannel fc, long length, int windowSize) {
+		this(fc, length, windowSize, false);
+	}
+
+	/**
+	 * @param fc
+	 * @param length
+	 *            文件长度，文件不够长时映射窗口会扩展文件。只读映射不能扩展文件，不能超过文件的实际长度
+	 * @param windowSize
+	 *            每个窗口的大小，必须是页大小的整数倍，不超过1G
+	 * @param readOnly
+	 *            是否只读映射
+	 */
+	public SegmentBuffer(FileChannel fc, long length, int windowSize, boolean readOnly) {
+		if (windowSize <= 0 || windowSize > MAX_WINDOW_SIZE || windowSize % PAGE_SIZE != 0) {
+			throw new IllegalArgumentException("illegal window size:" + windowSize);
+		}
+		this.fc = fc;
+		this.length = length;
+		this.windowSize = windowSize;
+		this.mode = readOnly ? MapMode.READ_ONLY : MapMode.READ_WRITE;
+	}
+
+	private static int alignWindowSize(int size) {
+		size = Math.min(Math.max(size, PAGE_SIZE), MAX_WINDOW_SIZE);
+		return size & ~(PAGE_SIZE - 1);
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public int getWindowSize() {
+		return windowSize;
+	}
+
+	/**
+	 * @return 新的访问视图，每个线程使用自己的视图
+	 */
+	public synchronized Cursor cursor() {
+		Cursor cursor = new Cursor();
+		cursors.add(cursor);
+		return cursor;
+	}
+
+	/**
+	 * 刷盘[from, to)所在的页，按窗口分段。一段超过半个窗口时直接刷盘刷盘视图的整个窗口，不再单独映射；
+	 * 较小的一段单独映射出这几页刷盘，内核不需要遍历整个窗口。读写视图的窗口随时可能被移动，
+	 * 所以不借用它们的窗口，几个映射共享同一份page cache
+	 *
+	 * @param from
+	 * @param to
+	 */
+	public synchronized void force(long from, long to) {
+		long position = from & ~(long) (PAGE_SIZE - 1);
+		try {
+			while (position < to) {
+				long end = Math.min(to, position - position % windowSize + windowSize);
+				if (end - position > windowSize / 2) {
+					if (flushCursor == null) {
+						flushCursor = cursor();
+					}
+					flushCursor.force(position);
+				} else {
+					MappedByteBuffer region = fc.map(MapMode.READ_WRITE, position, end - position);
+					region.force();
+					MappedByteBufferUtil.clean(region);
+				}
+				position = end;
+			}
+		} catch (IOException e) {
+			forceFile(e);
+		} catch (IllegalStateException e) {
+			forceFile(e);
+		}
+	}
+
+	private void forceFile(Exception e) {
+		log.warn("map dirty region error, force whole file", e);
+		try {
+			fc.force(false);
+		} catch (IOException e1) {
+			log.error("force file error", e1);
+		}
+	}
+
+	/**
+	 * 把[from, to)所在的页读入page cache。和force一样把这段区域单独映射出来，读取完就解除映射，
+	 * 读写视图之后访问这些页时不再等待磁盘。可以在其他线程中调用，文件已经关闭时直接返回
+	 *
+	 * @param from
+	 * @param to
+	 */
+	public void load(long from, long to) {
+		long position = from & ~(long) (PAGE_SIZE - 1);
+		to = Math.min(to, length);
+		try {
+			while (position < to) {
+				long size = Math.min(to - position, MAX_WINDOW_SIZE);
+				MappedByteBuffer region = fc.map(MapMode.READ_ONLY, position, size);
+				region.load();
+				MappedByteBufferUtil.clean(region);
+				loadedBytes.addAndGet(size);
+				position += size;
+			}
+		} catch (ClosedChannelException e) {
+			// 文件已经读完关闭，不需要再预读
+		} catch (IOException e) {
+			log.warn("load region at " + position + " error", e);
+		}
+	}
+
+	/**
+	 * 解除所有视图的映射，之后不能再访问任何视图。还没有释放的Slice仍然可以访问
+	 */
+	public synchronized void close() {
+		for (int i = 0; i < cursors.size(); i++) {
+			cursors.get(i).unmap();
+		}
+		cursors.clear();
+		flushCursor = null;
+	}
+
+	/**
+	 * @return 所有窗口是否都已经解除映射。close之后还有没释放的Slice时为false
+	 */
+	public boolean isUnmapped() {
+		return liveWindows.get() == 0;
+	}
+
+	public static long getMappedWindows() {
+		return mappedWindows.get();
+	}
+
+	public static long getMappedBytes() {
+		return mappedBytes.get();
+	}
+
+	public static long getMapCount() {
+		return mapCount.get();
+	}
+
+	/**
+	 * @return 还没有释放的映射内存的Slice数
+	 */
+	public static long getOpenSlices() {
+		return openSlices.get();
+	}
+
+	public static long getLoadedBytes() {
+		return loadedBytes.get();
+	}
+
+	public static String getStats() {
+		return "windowSize:" + DEFAULT_WINDOW_SIZE + "\r\nmappedWindows:" + mappedWindows.get() + "\r\nmappedBytes:"
+				+ mappedBytes.get() + "\r\nmapCount:" + mapCount.get() + "\r\nopenSlices:" + openSlices.get()
+				+ "\r\nloadedBytes:" + loadedBytes.get();
+	}
+
+	/**
+	 * 一个映射窗口，视图和引用它的Slice各持有一个引用，全部释放后解除映射
+	 */
+	private static final class Window {
+		private final MappedByteBuffer buffer;
+		private final AtomicInteger owner;
+		private final AtomicInteger refs = new AtomicInteger(1);
+
+		Window(MappedByteBuffer buffer, AtomicInteger owner) {
+			this.buffer = buffer;
+			this.owner = owner;
+			owner.incrementAndGet();
+			mappedWindows.incrementAndGet();
+			mappedBytes.addAndGet(buffer.capacity());
+			mapCount.incrementAndGet();
+		}
+
+		void retain() {
+			refs.incrementAndGet();
+		}
+
+		void release() {
+			if (refs.decrementAndGet() == 0) {
+				owner.decrementAndGet();
+				mappedWindows.decrementAndGet();
+				mappedBytes.addAndGet(-buffer.capacity());
+				MappedByteBufferUtil.clean(buffer);
+			}
+		}
+	}
+
+	/**
+	 * 一条数据的只读视图，直接指向映射的内存或者堆内存，不复制数据。
+	 * 指向映射内存时必须调用release，之后不能再访问buffer
+	 */
+	public static final class Slice {
+		private final ByteBuffer buffer;
+		private final Window window;
+		private final AtomicBoolean released = new AtomicBoolean(false);
+
+		private Slice(ByteBuffer buffer, Window window) {
+			this.buffer = buffer;
+			this.window = window;
+			if (window != null) {
+				openSlices.incrementAndGet();
+			}
+		}
+
+		/**
+		 * 包装堆内存中的数据
+		 *
+		 * @param data
+		 * @return
+		 */
+		public static Slice wrap(byte[] data) {
+			return new Slice(ByteBuffer.wrap(data).asReadOnlyBuffer(), null);
+		}
+
+		/**
+		 * @return 数据的只读视图，position为0，limit为数据长度
+		 */
+		public ByteBuffer buffer() {
+			return buffer;
+		}
+
+		public int length() {
+			return buffer.limit();
+		}
+
+		/**
+		 * 复制出数据
+		 */
+		public byte[] toArray() {
+			byte[] b = new byte[buffer.limit()];
+			buffer.duplicate().get(b);
+			return b;
+		}
+
+		/**
+		 * 释放对映射窗口的引用，可以重复调用
+		 */
+		public void release() {
+			if (window != null && released.compareAndSet(false, true)) {
+				openSlices.decrementAndGet();
+				window.release();
+			}
+		}
+	}
+
+	/**
+	 * 按文件中的绝对位置读写的视图，只映射当前访问位置所在的窗口。视图不能在线程间共用
+	 */
+	public class Cursor {
+		private MappedByteBuffer window;
+		private Window current;
+		private long windowStart = -1;
+
+		private Cursor() {
+		}
+
+		/**
+		 * 把position所在的窗口映射进来，返回position在窗口中的偏移
+		 */
+		private int slide(long position) {
+			long start = position - position % windowSize;
+			if (start != windowStart) {
+				unmap();
+				try {
+					window = fc.map(mode, start, Math.min(length - start, (long) windowSize + OVERLAP));
+				} catch (IOException e) {
+					throw new IllegalStateException("map window at " + start + " error", e);
+				}
+				current = new Window(window, liveWindows);
+				windowStart = start;
+			}
+			return (int) (position - start);
+		}
+
+		private void unmap() {
+			if (window != null) {
+				current.release();
+				current = null;
+				window = null;
+				windowStart = -1;
+			}
+		}
+
+		/**
+		 * 刷盘position所在的整个窗口
+		 */
+		private void force(long position) {
+			slide(position);
+			window.force();
+		}
+
+		public byte get(long position) {
+			int offset = slide(position);
+			return window.get(offset);
+		}
+
+		public int getInt(long position) {
+			int offset = slide(position);
+			return window.getInt(offset);
+		}
+
+		public long getLong(long position) {
+			int offset = slide(position);
+			return window.getLong(offset);
+		}
+
+		public void put(long position, byte value) {
+			int offset = slide(position);
+			window.put(offset, value);
+		}
+
+		public void putInt(long position, int value) {
+			int offset = slide(position);
+			window.putInt(offset, value);
+		}
+
+		public void putLong(long position, long value) {
+			int offset = slide(position);
+			window.putLong(offset, value);
+		}
+
+		/**
+		 * 从position开始读取length个字节，可以跨越多个窗口
+		 */
+		public void get(long position, byte[] dst, int offset, int length) {
+			while (length > 0) {
+				int from = slide(position);
+				int n = Math.min(length, windowSize - from);
+				window.position(from);
+				window.get(dst, offset, n);
+				position += n;
+				offset += n;
+				length -= n;
+			}
+		}
+
+		/**
+		 * 返回从position开始length个字节的只读视图。数据在一个窗口内时直接指向映射的内存，
+		 * 跨越窗口时复制到堆内存中
+		 */
+		public Slice slice(long position, int length) {
+			int from = slide(position);
+			if (from + length > window.capacity()) {
+				byte[] b = new byte[length];
+				get(position, b, 0, length);
+				return Slice.wrap(b);
+			}
+			ByteBuffer view = window.duplicate();
+			view.limit(from + length);
+			view.position(from);
+			current.retain();
+			return new Slice(view.slice().asReadOnlyBuffer(), current);
+		}
+
+		/**
+		 * 从position开始写入length个字节，可以跨越多个窗口
+		 */
+		public void put(long position, byte[] src, int offset, int length) {
+			while (length > 0) {
+				int from = slide(position);
+				int n = Math.min(length, windowSize - from);
+				window.position(from);
+				window.put(src, offset, n);
+				position += n;
+				offset += n;
+				length -= n;
+			}
+		}
+	}
+}
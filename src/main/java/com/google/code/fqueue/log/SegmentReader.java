@@ -0,0 +1,166 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.code.fqueue.exception.FileFormatException;
+
+/**
+ * 以只读映射打开一个数据文件，按位置读取数据，不修改文件和索引，不影响正在读写这个文件的LogEntity。
+ * 文件头中的下一个文件和结束位置每次都从映射中读取，可以看到写线程之后的修改
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public class SegmentReader {
+	private final Logger log = LoggerFactory.getLogger(SegmentReader.class);
+	private static final int NEXT_FILE_OFFSET = 12;
+	private static final int END_POSITION_OFFSET = 16;
+	private static final int BASE_SEQUENCE_OFFSET = 24;
+	private final int fileNumber;
+	private final RandomAccessFile raFile;
+	private final SegmentBuffer buffer;
+	private final SegmentBuffer.Cursor cursor;
+	private final int version;
+	private final int dataStart;
+	private final int recordHeaderLength;
+	private final CRC32 crc = new CRC32();
+	private final byte[] scratch = new byte[9];
+
+	public SegmentReader(String path, int fileNumber) throws IOException, FileFormatException {
+		this.fileNumber = fileNumber;
+		raFile = new RandomAccessFile(path, "r");
+		try {
+			long length = raFile.length();
+			if (length < LogEntity.messageStartPosition) {
+				throw new FileFormatException("file format error");
+			}
+			FileChannel fc = raFile.getChannel();
+			buffer = new SegmentBuffer(fc, length, SegmentBuffer.DEFAULT_WINDOW_SIZE, true);
+			cursor = buffer.cursor();
+			byte[] b = new byte[8];
+			cursor.get(0, b, 0, b.length);
+			if (LogEntity.MAGIC.equals(new String(b)) == false) {
+				throw new FileFormatException("file format error");
+			}
+			version = cursor.getInt(8);
+			dataStart = LogEntity.getDataStart(version);
+			recordHeaderLength = version >= 2 ? LogEntity.RECORD_HEADER_LENGTH : 4;
+		} catch (FileFormatException e) {
+			raFile.close();
+			throw e;
+		} catch (IOException e) {
+			raFile.close();
+			throw e;
+		}
+	}
+
+	public int getFileNumber() {
+		return fileNumber;
+	}
+
+	public int getDataStart() {
+		return dataStart;
+	}
+
+	public int getRecordHeaderLength() {
+		return recordHeaderLength;
+	}
+
+	/**
+	 * @return 文件中第一条数据的序号，旧版本的文件没有记录时为-1
+	 */
+	public long getBaseSequence() {
+		return version >= 3 ? cursor.getLong(BASE_SEQUENCE_OFFSET) : -1;
+	}
+
+	public int getNextFile() {
+		return cursor.getInt(NEXT_FILE_OFFSET);
+	}
+
+	/**
+	 * @return 文件写满时的结束位置，未写满时为-1，预创建的文件为-2
+	 */
+	public long getEndPosition() {
+		return version >= 3 ? cursor.getLong(END_POSITION_OFFSET) : cursor.getInt(END_POSITION_OFFSET);
+	}
+
+	/**
+	 * 读取position处的一条数据在文件中存放的内容，长度越界或者校验失败时返回null。
+	 * 下一条数据的位置按返回内容的长度计算，压缩的数据需要再用decode还原
+	 *
+	 * @param position
+	 * @param limit
+	 *            可读数据的结束位置
+	 * @return
+	 */
+	public byte[] read(long position, long limit) {
+		limit = Math.min(limit, buffer.getLength());
+		if (limit - position < recordHeaderLength) {
+			return null;
+		}
+		int length = cursor.getInt(position);
+		if (length < 0 || length > limit - position - recordHeaderLength) {
+			return null;
+		}
+		byte[] b = new byte[length];
+		cursor.get(position + recordHeaderLength, b, 0, length);
+		if (recordHeaderLength == LogEntity.RECORD_HEADER_LENGTH) {
+			byte attributes = cursor.get(position + 4);
+			if (LogEntity.checksum(crc, scratch, fileNumber, length, attributes, b, length) != cursor
+					.getInt(position + 5)) {
+				return null;
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * 按position处数据的属性解压read读到的内容
+	 *
+	 * @param position
+	 * @param stored
+	 * @return 无法解压时返回null，调用者跳过这条数据
+	 */
+	public byte[] decode(long position, byte[] stored) {
+		if (recordHeaderLength != LogEntity.RECORD_HEADER_LENGTH) {
+			return stored;
+		}
+		try {
+			return Codec.decode(cursor.get(position + 4), stored);
+		} catch (IllegalArgumentException e) {
+			log.error("undecodable record in file " + fileNumber + " at position " + position + ", skip it", e);
+			return null;
+		}
+	}
+
+	public void close() {
+		buffer.close();
+		try {
+			raFile.close();
+		} catch (IOException e) {
+			log.error("close segment reader error:", e);
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 数据文件的稀疏索引，和数据文件放在一起，每隔一定条数或者字节数记录一条数据的序号和它在数据文件中的位置。
+ * 每个索引项16个字节：[序号][位置]，按序号递增追加。索引只用于定位，数据以数据文件为准，
+ * 丢失或者超前的索引项不影响数据本身。间隔可以通过系统属性fqueue.index.records和fqueue.index.bytes设置
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public class SparseIndex {
+	private static final Logger log = LoggerFactory.getLogger(SparseIndex.class);
+	public static final String SUFFIX = ".sidx";
+	public static final int RECORD_INTERVAL = Integer.getInteger("fqueue.index.records", 1024);
+	public static final int BYTE_INTERVAL = Integer.getInteger("fqueue.index.bytes", 1024 * 1024);
+	private static final int ENTRY_LENGTH = 16;
+	private final RandomAccessFile raFile;
+	private final byte[] entry = new byte[ENTRY_LENGTH];
+	private long length;
+	private long lastSequence;
+	private long lastPosition;
+
+	/**
+	 * 打开或者创建索引文件，丢弃序号不小于sequenceLimit或者位置不小于positionLimit的索引项，
+	 * 它们指向的数据在崩溃恢复时已经被丢弃
+	 *
+	 * @param path
+	 * @param baseSequence
+	 *            数据文件中第一条数据的序号，未知时为-1
+	 * @param dataStart
+	 *            数据文件中数据的起始位置
+	 * @param sequenceLimit
+	 * @param positionLimit
+	 * @throws IOException
+	 */
+	public SparseIndex(String path, long baseSequence, long dataStart, long sequenceLimit, long positionLimit)
+			throws IOException {
+		raFile = new RandomAccessFile(path, "rw");
+		length = raFile.length() - raFile.length() % ENTRY_LENGTH;
+		lastSequence = baseSequence;
+		lastPosition = dataStart;
+		while (length > 0) {
+			raFile.seek(length - ENTRY_LENGTH);
+			long sequence = raFile.readLong();
+			long position = raFile.readLong();
+			if (sequence < sequenceLimit && position < positionLimit) {
+				lastSequence = sequence;
+				lastPosition = position;
+				break;
+			}
+			length -= ENTRY_LENGTH;
+		}
+		if (raFile.length() != length) {
+			raFile.setLength(length);
+		}
+	}
+
+	/**
+	 * 写入位置position处序号为sequence的数据之后调用，距离上一个索引项超过间隔时追加一项。只由写线程调用
+	 *
+	 * @param sequence
+	 * @param position
+	 */
+	public void add(long sequence, long position) {
+		if (lastSequence >= 0 && sequence - lastSequence < RECORD_INTERVAL
+				&& position - lastPosition < BYTE_INTERVAL) {
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(entry);
+		buffer.putLong(sequence);
+		buffer.putLong(position);
+		try {
+			raFile.seek(length);
+			raFile.write(entry);
+			length += ENTRY_LENGTH;
+			lastSequence = sequence;
+			lastPosition = position;
+		} catch (IOException e) {
+			log.warn("write sparse index error", e);
+		}
+	}
+
+	public void close() {
+		try {
+			raFile.close();
+		} catch (IOException e) {
+			log.error("close sparse index error:", e);
+		}
+	}
+
+	/**
+	 * 查找位置在position之后的第一个索引项，读到损坏的数据时用它找到之后第一条完整数据和它的序号
+	 *
+	 * @param path
+	 * @param position
+	 * @return [序号, 位置]，没有索引文件或者没有这样的索引项时返回null
+	 */
+	public static long[] higher(String path, long position) {
+		File file = new File(path);
+		if (file.exists() == false) {
+			return null;
+		}
+		try {
+			RandomAccessFile raFile = new RandomAccessFile(file, "r");
+			try {
+				long low = 0;
+				long high = raFile.length() / ENTRY_LENGTH - 1;
+				long[] found = null;
+				while (low <= high) {
+					long middle = (low + high) >>> 1;
+					raFile.seek(middle * ENTRY_LENGTH);
+					long sequence = raFile.readLong();
+					long current = raFile.readLong();
+					if (current > position) {
+						found = new long[] { sequence, current };
+						high = middle - 1;
+					} else {
+						low = middle + 1;
+					}
+				}
+				return found;
+			} finally {
+				raFile.close();
+			}
+		} catch (IOException e) {
+			log.warn("read sparse index " + path + " error", e);
+			return null;
+		}
+	}
+
+	/**
+	 * 查找序号不大于sequence的最后一个索引项
+	 *
+	 * @param path
+	 * @param sequence
+	 * @return [序号, 位置]，没有索引文件或者没有这样的索引项时返回null
+	 */
+	public static long[] floor(String path, long sequence) {
+		File file = new File(path);
+		if (file.exists() == false) {
+			return null;
+		}
+		try {
+			RandomAccessFile raFile = new RandomAccessFile(file, "r");
+			try {
+				long low = 0;
+				long high = raFile.length() / ENTRY_LENGTH - 1;
+				long[] found = null;
+				while (low <= high) {
+					long middle = (low + high) >>> 1;
+					raFile.seek(middle * ENTRY_LENGTH);
+					long current = raFile.readLong();
+					if (current <= sequence) {
+						found = new long[] { current, raFile.readLong() };
+						low = middle + 1;
+					} else {
+						high = middle - 1;
+					}
+				}
+				return found;
+			} finally {
+				raFile.close();
+			}
+		} catch (IOException e) {
+			log.warn("read sparse index " + path + " error", e);
+			return null;
+		}
+	}
+}
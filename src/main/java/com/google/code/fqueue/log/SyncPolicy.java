@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.Locale;
+
+/**
+ * 数据刷盘策略。配置格式为 os、interval:毫秒数、records:条数、bytes:字节数、sync
+ *
+ *@author sunli
+ *@date 2011-5-18
+ *@version $Id$
+ */
+public class SyncPolicy {
+	public enum Mode {
+		/**
+		 * 不主动刷盘，由操作系统决定写回时机
+		 */
+		OS,
+		/**
+		 * 每隔固定的毫秒数刷盘一次
+		 */
+		INTERVAL,
+		/**
+		 * 每写入指定条数刷盘一次
+		 */
+		RECORDS,
+		/**
+		 * 每写入指定字节数刷盘一次
+		 */
+		BYTES,
+		/**
+		 * 每次写入后立即刷盘
+		 */
+		SYNC
+	}
+
+	/**
+	 * 默认每10毫秒刷盘一次，和以前的行为一致
+	 */
+	public static final SyncPolicy DEFAULT = new SyncPolicy(Mode.INTERVAL, 10);
+
+	private final Mode mode;
+	private final long value;
+
+	private SyncPolicy(Mode mode, long value) {
+		this.mode = mode;
+		this.value = value;
+	}
+
+	public static SyncPolicy os() {
+		return new SyncPolicy(Mode.OS, 0);
+	}
+
+	public static SyncPolicy interval(long millis) {
+		return new SyncPolicy(Mode.INTERVAL, checkPositive(millis));
+	}
+
+	public static SyncPolicy records(int count) {
+		return new SyncPolicy(Mode.RECORDS, checkPositive(count));
+	}
+
+	public static SyncPolicy bytes(long bytes) {
+		return new SyncPolicy(Mode.BYTES, checkPositive(bytes));
+	}
+
+	public static SyncPolicy sync() {
+		return new SyncPolicy(Mode.SYNC, 0);
+	}
+
+	private static long checkPositive(long value) {
+		if (value <= 0) {
+			throw new IllegalArgumentException("sync policy value must be positive:" + value);
+		}
+		return value;
+	}
+
+	/**
+	 * 解析配置，例如 interval:10，为空时返回默认策略
+	 *
+	 * @param setting
+	 * @return
+	 */
+	public static SyncPolicy parse(String setting) {
+		if (setting == null || setting.trim().length() == 0) {
+			return DEFAULT;
+		}
+		String[] item = setting.trim().split(":");
+		Mode mode;
+		try {
+			mode = Mode.valueOf(item[0].trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException("unknown sync policy:" + setting);
+		}
+		if (mode == Mode.OS || mode == Mode.SYNC) {
+			return new SyncPolicy(mode, 0);
+		}
+		if (item.length != 2) {
+			throw new IllegalArgumentException("sync policy " + mode + " need a value:" + setting);
+		}
+		return new SyncPolicy(mode, checkPositive(Long.parseLong(item[1].trim())));
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public long getValue() {
+		return value;
+	}
+
+	@Override
+	public String toString() {
+		if (mode == Mode.OS || mode == Mode.SYNC) {
+			return mode.name().toLowerCase(Locale.ENGLISH);
+		}
+		return mode.name().toLowerCase(Locale.ENGLISH) + ":" + value;
+	}
+}
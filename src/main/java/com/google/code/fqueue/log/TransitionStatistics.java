@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.log;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 进程内读线程切换数据文件的耗时统计，按耗时分段计数
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public final class TransitionStatistics {
+	/**
+	 * 各分段耗时的上限，单位微秒，最后一段没有上限
+	 */
+	private static final long[] BOUNDS = { 10, 100, 1000, 10000, 100000 };
+	private static final AtomicLongArray buckets = new AtomicLongArray(BOUNDS.length + 1);
+	private static final AtomicLong transitionCount = new AtomicLong();
+	private static final AtomicLong preopenedCount = new AtomicLong();
+	private static final AtomicLong transitionNanos = new AtomicLong();
+	private static final AtomicLong maxTransitionNanos = new AtomicLong();
+
+	private TransitionStatistics() {
+	}
+
+	/**
+	 * 记录一次切换
+	 *
+	 * @param nanos
+	 *            切换耗时
+	 * @param preopened
+	 *            下一个文件是否已经在后台打开
+	 */
+	public static void record(long nanos, boolean preopened) {
+		long micros = nanos / 1000;
+		int i = 0;
+		while (i < BOUNDS.length && micros >= BOUNDS[i]) {
+			i++;
+		}
+		buckets.incrementAndGet(i);
+		transitionCount.incrementAndGet();
+		if (preopened) {
+			preopenedCount.incrementAndGet();
+		}
+		transitionNanos.addAndGet(nanos);
+		long max;
+		while (nanos > (max = maxTransitionNanos.get())) {
+			if (maxTransitionNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+
+	public static long getTransitionCount() {
+		return transitionCount.get();
+	}
+
+	/**
+	 * @return 使用后台打开的文件完成的切换次数
+	 */
+	public static long getPreopenedCount() {
+		return preopenedCount.get();
+	}
+
+	/**
+	 * @return 单次切换的最大耗时，单位微秒
+	 */
+	public static long getMaxTransitionMicros() {
+		return maxTransitionNanos.get() / 1000;
+	}
+
+	public static String getStats() {
+		long count = transitionCount.get();
+		long micros = transitionNanos.get() / 1000;
+		StringBuilder sb = new StringBuilder();
+		sb.append("transitionCount:").append(count).append("\r\npreopenedTransitions:").append(preopenedCount.get())
+				.append("\r\navgTransitionMicros:").append(count == 0 ? 0 : micros / count)
+				.append("\r\nmaxTransitionMicros:").append(getMaxTransitionMicros());
+		for (int i = 0; i < BOUNDS.length; i++) {
+			sb.append("\r\ntransitionsUnder").append(BOUNDS[i]).append("us:").append(buckets.get(i));
+		}
+		sb.append("\r\ntransitionsOver").append(BOUNDS[BOUNDS.length - 1]).append("us:")
+				.append(buckets.get(BOUNDS.length));
+		return sb.toString();
+	}
+}
@@ -17,9 +17,14 @@ package com.google.code.fqueue.memcached.storage;
 
 import java.io.IOException;
 import java.util.AbstractQueue;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 
 import org.apache.commons.lang.StringUtils;
@@ -27,7 +32,17 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.google.code.fqueue.FQueue;
+import com.google.code.fqueue.FSQueue;
 import com.google.code.fqueue.exception.ConfigException;
+import com.google.code.fqueue.log.Codec;
+import com.google.code.fqueue.log.FileRunner;
+import com.google.code.fqueue.log.FlushStatistics;
+import com.google.code.fqueue.log.HotTail;
+import com.google.code.fqueue.log.QuotaPolicy;
+import com.google.code.fqueue.log.RetentionPolicy;
+import com.google.code.fqueue.log.SegmentBuffer;
+import com.google.code.fqueue.log.SyncPolicy;
+import com.google.code.fqueue.log.TransitionStatistics;
 import com.google.code.fqueue.util.Config;
 import com.google.code.fqueue.util.JVMMonitor;
 import com.thimbleware.jmemcached.LocalCacheElement;
@@ -52,11 +67,43 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
     /**
      * 每个队列服务的单个日至存储的大小限制 配置文件中的单位为M
      */
-    private final static int logSize = 1024 * 1024 * Integer.parseInt(Config.getSetting("logsize"));
+    private final static long logSize = 1024L * 1024 * Long.parseLong(Config.getSetting("logsize").trim());
     /**
      * 数据存储路径
      */
     private final static String dbpath = Config.getSetting("path").trim();
+    /**
+     * 刷盘策略，未配置时每10毫秒刷盘一次
+     */
+    private final static SyncPolicy syncPolicy = SyncPolicy.parse(Config.getSetting("sync"));
+    /**
+     * 持久化模式的队列名称，多个用逗号分隔。这些队列的set在数据刷盘之后才返回STORED
+     */
+    private final static Set<String> durableQueues = new HashSet<String>();
+    static {
+        String durable = Config.getSetting("durable");
+        if (durable != null) {
+            String[] names = StringUtils.split(durable, ",");
+            for (int i = 0, len = names.length; i < len; i++) {
+                durableQueues.add(names[i].trim());
+            }
+        }
+    }
+    /**
+     * reserve预留数据的默认超时时间，单位秒
+     */
+    private final static long leaseTimeout = 30;
+    /**
+     * 所有队列积压字节数的总限额，以及因为总限额丢弃的条数
+     */
+    private final static QuotaPolicy totalQuota = QuotaPolicy.parse(Config.getSetting("totalquota"));
+    private final AtomicLong totalDropped = new AtomicLong();
+    /**
+     * 超过总限额时等待的生产者，取出或者确认数据之后唤醒
+     */
+    private final ReentrantLock totalLock = new ReentrantLock();
+    private final Condition totalNotFull = totalLock.newCondition();
+    private final AtomicInteger totalWaiters = new AtomicInteger();
     /**
      * 安全验证map
      */
@@ -117,7 +164,7 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
         // 获取队列中元素的个数
         if (keystring.startsWith("size")) {
             try {
-                // size|bbs
+                // size|bbs 或者 size|bbs|bytes，后者返回积压的字节数
                 // size操作无密码验证，只需要队列名称正确即可
                 String[] clientInfo = QueueClient.parse(keystring, '|');
                 if (clientInfo.length < 2 || authorizationMap.containsKey(clientInfo[1]) == false) {
@@ -127,7 +174,10 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
                 if (sizeQueue == null) {
                     return null;
                 }
-                int size = sizeQueue.size();
+                long size = sizeQueue.size();
+                if (clientInfo.length > 2 && "bytes".equals(clientInfo[2])) {
+                    size = ((FQueue) sizeQueue).sizeInBytes();
+                }
                 LocalCacheElement element = new LocalCacheElement(keystring, 0, 0, 0);
                 element.setData(String.valueOf(size).getBytes());
                 return element;
@@ -136,6 +186,49 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
                 return null;
             }
         }
+        // 读取队列头部的元素，不移除
+        if (keystring.startsWith("peek")) {
+            try {
+                // peek|bbs|pass
+                String[] clientInfo = QueueClient.parse(keystring, '|');
+                if (clientInfo.length < 3 || valid(clientInfo[1], clientInfo[2]) == false) {
+                    throw new ClientException("Authorization error");
+                }
+                AbstractQueue<byte[]> queue = getClientQueue(clientInfo[1]);
+                byte[] data = queue.peek();
+                if (data == null) {
+                    return null;
+                }
+                LocalCacheElement element = new LocalCacheElement(keystring, 0, 0, 0);
+                element.setData(data);
+                return element;
+            } catch (Exception e) {
+                log.error("peek " + keystring + "error", e);
+                return null;
+            }
+        }
+        // 预留队列头部的元素，超时没有确认时重新投递。gets命令返回的cas值用于确认
+        if (keystring.startsWith("reserve")) {
+            try {
+                // reserve|bbs|pass 或者 reserve|bbs|pass|超时秒数
+                String[] clientInfo = QueueClient.parse(keystring, '|');
+                if (clientInfo.length < 3 || valid(clientInfo[1], clientInfo[2]) == false) {
+                    throw new ClientException("Authorization error");
+                }
+                long timeout = clientInfo.length > 3 ? Long.parseLong(clientInfo[3]) : leaseTimeout;
+                FQueue queue = (FQueue) getClientQueue(clientInfo[1]);
+                FSQueue.Lease lease = queue.reserve(timeout, TimeUnit.SECONDS);
+                if (lease == null) {
+                    return null;
+                }
+                LocalCacheElement element = new LocalCacheElement(keystring, 0, 0, lease.getToken());
+                element.setData(lease.getData());
+                return element;
+            } catch (Exception e) {
+                log.error("reserve " + keystring + "error", e);
+                return null;
+            }
+        }
         // 清空队列中所有的元素
         if (keystring.startsWith("clear")) {
             try {
@@ -146,6 +239,7 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
                 }
                 AbstractQueue<byte[]> queue = getClientQueue(clientInfo[1]);
                 queue.clear();
+                signalTotalNotFull();
                 LocalCacheElement element = new LocalCacheElement(keystring, 0, 0, 0);
                 element.setData(String.valueOf(queue.size()).getBytes());
                 return element;
@@ -190,8 +284,24 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
                         if (i > 0) {
                             stats.append("\r\n");
                         }
-                        String data = JVMMonitor.getMonitorStats(itemList[i]);
-                        stats.append(data);
+                        // 刷盘、内存映射、压缩、数据文件、限额、内存副本和切换文件的统计不属于JVM状态，单独处理
+                        if ("flush".equals(itemList[i])) {
+                            stats.append(FlushStatistics.getStats());
+                        } else if ("mmap".equals(itemList[i])) {
+                            stats.append(SegmentBuffer.getStats());
+                        } else if ("compress".equals(itemList[i])) {
+                            stats.append(Codec.getStats());
+                        } else if ("segments".equals(itemList[i])) {
+                            stats.append(FileRunner.getStats());
+                        } else if ("quota".equals(itemList[i])) {
+                            stats.append(getQuotaStats());
+                        } else if ("hottail".equals(itemList[i])) {
+                            stats.append(getHotTailStats());
+                        } else if ("transitions".equals(itemList[i])) {
+                            stats.append(TransitionStatistics.getStats());
+                        } else {
+                            stats.append(JVMMonitor.getMonitorStats(itemList[i]));
+                        }
                     }
                 } else {
                     stats.append("need items");
@@ -216,11 +326,17 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
             }
             String[] clientInfo = QueueClient.parseWithCache(keystring);
             if (valid(clientInfo[0], clientInfo[1])) {
-                byte[] data;
-                data = getClientQueue(clientInfo[0]).poll();
-                if (data != null) {
+                final SegmentBuffer.Slice slice = ((FQueue) getClientQueue(clientInfo[0])).pollSlice();
+                if (slice != null) {
                     LocalCacheElement element = new LocalCacheElement(keystring, 0, 0, 0);
-                    element.setData(data);
+                    // 直接引用数据文件映射的内存，发送完成或者发送失败之后释放
+                    element.setBuffer(slice.buffer(), new Runnable() {
+                        @Override
+                        public void run() {
+                            slice.release();
+                        }
+                    });
+                    signalTotalNotFull();
                     return element;
                 } else {
                     log.info("queue empty");
@@ -236,14 +352,24 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
         return null;
     }
 
+    /**
+     * stats中的limit_maxbytes，为所有队列积压字节数的总限额，不限制时为0
+     */
     @Override
     public long getMemoryCapacity() {
-        return 0;
+        return totalQuota.getMaxBytes();
     }
 
+    /**
+     * stats中的bytes，为所有队列积压的字节数
+     */
     @Override
     public long getMemoryUsed() {
-        return 0;
+        long bytes = 0;
+        for (AbstractQueue<byte[]> queue : queuemMap.values()) {
+            bytes += ((FQueue) queue).sizeInBytes();
+        }
+        return bytes;
     }
 
     @Override
@@ -255,7 +381,7 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
     public LocalCacheElement put(String keystring, LocalCacheElement e) throws DatabaseException, Exception {
         String[] clientInfo = QueueClient.parseWithCache(keystring);
         if (valid(clientInfo[0], clientInfo[1])) {// 先进行密码验证
-            getClientQueue(clientInfo[0]).add(e.getData());
+            offer((FQueue) getClientQueue(clientInfo[0]), e.getData());
             return null;
         } else {
             throw new ClientException("Authorization error");
@@ -266,7 +392,7 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
     public LocalCacheElement putIfAbsent(String keystring, LocalCacheElement e) throws DatabaseException, Exception {
         String[] clientInfo = QueueClient.parseWithCache(keystring);
         if (valid(clientInfo[0], clientInfo[1])) {// 先进行密码验证
-            getClientQueue(clientInfo[0]).add(e.getData());
+            offer((FQueue) getClientQueue(clientInfo[0]), e.getData());
             return null;
         } else {
             throw new ClientException("Authorization error");
@@ -274,9 +400,153 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
 
     }
 
+    /**
+     * 按总限额和队列自己的限额写入数据，超过限额并且不能腾出空间时返回SERVER_ERROR
+     * 
+     * @param queue
+     * @param data
+     * @throws InterruptedException
+     */
+    private void offer(FQueue queue, byte[] data) throws InterruptedException {
+        if (totalQuota.isEnabled() && totalQuota.isExceeded(getMemoryUsed())) {
+            reclaimTotal();
+        }
+        QuotaPolicy policy = queue.getQuotaPolicy();
+        boolean success;
+        if (policy.getAction() == QuotaPolicy.Action.BLOCK) {
+            success = queue.offer(data, policy.getTimeout(), TimeUnit.MILLISECONDS);
+        } else if (policy.getAction() == QuotaPolicy.Action.DROP) {
+            success = queue.offerDropOldest(data);
+        } else {
+            success = queue.offer(data);
+        }
+        if (success == false) {
+            throw new DatabaseException("queue quota exceeded");
+        }
+    }
+
+    /**
+     * 所有队列积压的字节数超过总限额时按总限额的策略处理：drop从积压最多的队列头部丢弃数据，
+     * block等待消费者读取，reject直接拒绝
+     * 
+     * @throws InterruptedException
+     */
+    private void reclaimTotal() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + totalQuota.getTimeout();
+        while (totalQuota.isExceeded(getMemoryUsed())) {
+            if (totalQuota.getAction() == QuotaPolicy.Action.DROP) {
+                FQueue largest = null;
+                for (AbstractQueue<byte[]> queue : queuemMap.values()) {
+                    if (largest == null || ((FQueue) queue).sizeInBytes() > largest.sizeInBytes()) {
+                        largest = (FQueue) queue;
+                    }
+                }
+                if (largest == null || largest.poll() == null) {
+                    break;
+                }
+                totalDropped.incrementAndGet();
+            } else if (totalQuota.getAction() == QuotaPolicy.Action.BLOCK) {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis());
+                if (nanos <= 0) {
+                    break;
+                }
+                totalLock.lock();
+                try {
+                    totalWaiters.incrementAndGet();
+                    try {
+                        // 先登记再检查，登记之前取出的数据在这里可以看到
+                        if (totalQuota.isExceeded(getMemoryUsed())) {
+                            totalNotFull.awaitNanos(nanos);
+                        }
+                    } finally {
+                        totalWaiters.decrementAndGet();
+                    }
+                } finally {
+                    totalLock.unlock();
+                }
+            } else {
+                break;
+            }
+        }
+        if (totalQuota.isExceeded(getMemoryUsed())) {
+            throw new DatabaseException("total quota exceeded");
+        }
+    }
+
+    /**
+     * 有数据被取出时唤醒超过总限额而等待的生产者
+     */
+    private void signalTotalNotFull() {
+        if (totalWaiters.get() > 0) {
+            totalLock.lock();
+            try {
+                totalNotFull.signalAll();
+            } finally {
+                totalLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return 各个队列积压的条数、字节数、限额和因为限额丢弃的条数
+     */
+    private String getQuotaStats() {
+        StringBuilder stats = new StringBuilder();
+        stats.append("totalQuota:").append(totalQuota).append("\r\ntotalBytes:").append(getMemoryUsed())
+                .append("\r\ntotalDropped:").append(totalDropped.get());
+        for (Map.Entry<String, AbstractQueue<byte[]>> entry : queuemMap.entrySet()) {
+            FQueue queue = (FQueue) entry.getValue();
+            stats.append("\r\n").append(entry.getKey()).append(":size ").append(queue.size()).append(",bytes ")
+                    .append(queue.sizeInBytes()).append(",quota ").append(queue.getQuotaPolicy())
+                    .append(",dropped ").append(queue.getDroppedCount());
+        }
+        return stats.toString();
+    }
+
+    /**
+     * @return 各个队列内存副本的配置和命中情况
+     */
+    private String getHotTailStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Map.Entry<String, AbstractQueue<byte[]>> entry : queuemMap.entrySet()) {
+            HotTail hotTail = ((FQueue) entry.getValue()).getHotTail();
+            if (stats.length() > 0) {
+                stats.append("\r\n");
+            }
+            stats.append(entry.getKey()).append(":");
+            if (hotTail == null) {
+                stats.append("none");
+            } else {
+                stats.append(hotTail).append(",").append(hotTail.getStats());
+            }
+        }
+        return stats.toString();
+    }
+
+    /**
+     * delete bbs_pass_token确认reserve预留的数据，token为gets返回的cas值
+     */
     @Override
-    public LocalCacheElement remove(String key) throws DatabaseException, Exception {
-        return null;
+    public LocalCacheElement remove(String keystring) throws DatabaseException, Exception {
+        String[] clientInfo = QueueClient.parseWithCache(keystring);
+        if (clientInfo.length < 3) {
+            return null;
+        }
+        if (valid(clientInfo[0], clientInfo[1]) == false) {
+            throw new ClientException("Authorization error");
+        }
+        long token;
+        try {
+            token = Long.parseLong(clientInfo[2]);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        FQueue queue = (FQueue) getClientQueue(clientInfo[0], false);
+        if (queue == null || queue.ack(token) == false) {
+            return null;
+        }
+        signalTotalNotFull();
+        return new LocalCacheElement(keystring, 0, 0, token);
     }
 
     @Override
@@ -290,9 +560,16 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
         return null;
     }
 
+    /**
+     * stats中的curr_items，为所有队列积压的条数
+     */
     @Override
     public long size() {
-        return 0;
+        long size = 0;
+        for (AbstractQueue<byte[]> queue : queuemMap.values()) {
+            size += queue.size();
+        }
+        return size;
     }
 
     private boolean valid(String appid, String pwd) {
@@ -314,7 +591,13 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
                 try {
                     queue = queuemMap.get(name);
                     if (queue == null) {
-                        queue = new FQueue(dbpath + "/" + name, logSize);
+                        FQueue fqueue = new FQueue(dbpath + "/" + name, logSize, syncPolicy);
+                        fqueue.setDurable(durableQueues.contains(name));
+                        fqueue.setRetentionPolicy(RetentionPolicy.parse(getQueueSetting("retention", name)));
+                        fqueue.setCodec(Codec.parse(getQueueSetting("compress", name)));
+                        fqueue.setQuotaPolicy(QuotaPolicy.parse(getQueueSetting("quota", name)));
+                        fqueue.setHotTail(HotTail.parse(getQueueSetting("hottail", name)));
+                        queue = fqueue;
                         queuemMap.put(name, queue);
                     }
                 } finally {
@@ -325,6 +608,21 @@ public class FSStorage implements CacheStorage<String, LocalCacheElement> {
         return queue;
     }
 
+    /**
+     * 队列的配置，key.队列名称 的配置优先，否则使用key的配置
+     * 
+     * @param key
+     * @param name
+     * @return
+     */
+    private String getQueueSetting(String key, String name) {
+        String setting = Config.getSetting(key + "." + name);
+        if (setting == null) {
+            setting = Config.getSetting(key);
+        }
+        return setting;
+    }
+
     /**
      * 获取或者创建指定名称的队列存储实例
      * 
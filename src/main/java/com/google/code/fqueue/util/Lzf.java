@@ -0,0 +1,167 @@
+/*
+ *  Copyright 2011 sunli [sunli1223@gmail.com][weibo.com@sunli1223]
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package com.google.code.fqueue.util;
+
+/**
+ * LZF格式的压缩和解压，纯Java实现。压缩后的数据由若干段组成，控制字节小于32时后面是控制字节加1个原样的字节；
+ * 否则高3位是匹配长度减2（为7时再读一个字节累加），低5位和下一个字节是向前引用的距离减1
+ *
+ * @author sunli
+ * @date 2011-5-18
+ * @version $Id$
+ */
+public final class Lzf {
+	private static final int HASH_LOG = 14;
+	private static final int MAX_LITERAL = 32;
+	private static final int MAX_OFFSET = 1 << 13;
+	private static final int MAX_MATCH = (1 << 8) + (1 << 3);
+	/**
+	 * 每个线程一个哈希表，表中残留的位置在使用前都会比较数据，不需要清空
+	 */
+	private static final ThreadLocal<int[]> tables = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1 << HASH_LOG];
+		}
+	};
+
+	private Lzf() {
+	}
+
+	/**
+	 * @param length
+	 * @return 压缩length个字节最多需要的空间
+	 */
+	public static int maxCompressedLength(int length) {
+		return length + length / MAX_LITERAL + 2;
+	}
+
+	/**
+	 * 压缩in的前length个字节，写入out的outPos之后
+	 *
+	 * @param in
+	 * @param length
+	 * @param out
+	 *            剩余空间不小于maxCompressedLength(length)
+	 * @param outPos
+	 * @return 压缩后的长度
+	 */
+	public static int compress(byte[] in, int length, byte[] out, int outPos) {
+		int[] table = tables.get();
+		int ip = 0;
+		int op = outPos;
+		int literals = 0;
+		// 当前这段原样数据的控制字节的位置
+		int control = op++;
+		while (ip < length - 2) {
+			int value = ((in[ip] & 0xff) << 16) | ((in[ip + 1] & 0xff) << 8) | (in[ip + 2] & 0xff);
+			int hash = value * -1640531535 >>> (32 - HASH_LOG);
+			int ref = table[hash] - 1;
+			table[hash] = ip + 1;
+			int offset = ip - ref - 1;
+			if (ref >= 0 && ref < ip && offset < MAX_OFFSET && in[ref] == in[ip] && in[ref + 1] == in[ip + 1]
+					&& in[ref + 2] == in[ip + 2]) {
+				int max = Math.min(length - ip, MAX_MATCH);
+				int len = 3;
+				while (len < max && in[ref + len] == in[ip + len]) {
+					len++;
+				}
+				if (literals > 0) {
+					out[control] = (byte) (literals - 1);
+				} else {
+					op--;
+				}
+				int code = len - 2;
+				if (code < 7) {
+					out[op++] = (byte) ((code << 5) + (offset >>> 8));
+				} else {
+					out[op++] = (byte) ((7 << 5) + (offset >>> 8));
+					out[op++] = (byte) (code - 7);
+				}
+				out[op++] = (byte) offset;
+				ip += len;
+				literals = 0;
+				control = op++;
+				continue;
+			}
+			out[op++] = in[ip++];
+			if (++literals == MAX_LITERAL) {
+				out[control] = (byte) (MAX_LITERAL - 1);
+				literals = 0;
+				control = op++;
+			}
+		}
+		while (ip < length) {
+			out[op++] = in[ip++];
+			if (++literals == MAX_LITERAL) {
+				out[control] = (byte) (MAX_LITERAL - 1);
+				literals = 0;
+				control = op++;
+			}
+		}
+		if (literals > 0) {
+			out[control] = (byte) (literals - 1);
+		} else {
+			op--;
+		}
+		return op - outPos;
+	}
+
+	/**
+	 * 解压in中从inPos开始的length个字节，解压后的数据正好填满out
+	 *
+	 * @param in
+	 * @param inPos
+	 * @param length
+	 * @param out
+	 * @throws IllegalArgumentException
+	 *             数据格式错误
+	 */
+	public static void decompress(byte[] in, int inPos, int length, byte[] out) {
+		int ip = inPos;
+		int end = inPos + length;
+		int op = 0;
+		try {
+			while (ip < end) {
+				int control = in[ip++] & 0xff;
+				if (control < MAX_LITERAL) {
+					int n = control + 1;
+					System.arraycopy(in, ip, out, op, n);
+					ip += n;
+					op += n;
+					continue;
+				}
+				int len = control >>> 5;
+				if (len == 7) {
+					len += in[ip++] & 0xff;
+				}
+				int ref = op - ((control & 0x1f) << 8) - (in[ip++] & 0xff) - 1;
+				if (ref < 0) {
+					throw new IllegalArgumentException("lzf reference out of range");
+				}
+				// 引用的区域可能和正在写入的区域重叠，逐字节复制
+				for (int i = len + 2; i > 0; i--) {
+					out[op++] = out[ref++];
+				}
+			}
+		} catch (ArrayIndexOutOfBoundsException e) {
+			throw new IllegalArgumentException("lzf data corrupted", e);
+		}
+		if (op != out.length) {
+			throw new IllegalArgumentException("lzf length mismatch:" + op + "!=" + out.length);
+		}
+	}
+}
@@ -259,6 +259,10 @@ public final class CacheImpl extends AbstractCache<LocalCacheElement> implements
 			LocalCacheElement e = storage.get(key);
 			if (e == null || isExpired(e) || e.isBlocked()) {
 				misses++;
+				if (e != null) {
+					// 不返回的数据不会被发送，直接释放引用的数据
+					e.release();
+				}
 
 				elements[x] = null;
 			} else {
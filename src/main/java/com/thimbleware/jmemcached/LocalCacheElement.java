@@ -36,6 +36,11 @@ public final class LocalCacheElement implements CacheElement, Externalizable {
     private long casUnique = 0L;
     private boolean blocked = false;
     private long blockedUntil;
+    /**
+     * 直接引用的数据，data为空时使用。发送完成之后调用release释放
+     */
+    private transient ByteBuffer buffer;
+    private transient Runnable release;
 
     public LocalCacheElement() {
     }
@@ -59,6 +64,9 @@ public final class LocalCacheElement implements CacheElement, Externalizable {
     }
 
     public int size() {
+        if (data == null && buffer != null) {
+            return buffer.remaining();
+        }
         return getData().length;
     }
 
@@ -161,9 +169,46 @@ public final class LocalCacheElement implements CacheElement, Externalizable {
     }
 
     public byte[] getData() {
+        if (data == null && buffer != null) {
+            // 需要数组的地方复制一份，之后不再引用buffer
+            data = new byte[buffer.remaining()];
+            buffer.duplicate().get(data);
+            release();
+        }
         return data;
     }
 
+    /**
+     * @return 直接引用的数据，没有时返回null
+     */
+    public ByteBuffer getBuffer() {
+        return data == null ? buffer : null;
+    }
+
+    /**
+     * 设置直接引用的数据，不复制
+     * 
+     * @param buffer
+     * @param release
+     *            数据不再使用时调用
+     */
+    public void setBuffer(ByteBuffer buffer, Runnable release) {
+        this.buffer = buffer;
+        this.release = release;
+    }
+
+    /**
+     * 释放直接引用的数据，可以重复调用
+     */
+    public void release() {
+        Runnable r = release;
+        release = null;
+        buffer = null;
+        if (r != null) {
+            r.run();
+        }
+    }
+
     public String getKeystring() {
         return keystring;
     }
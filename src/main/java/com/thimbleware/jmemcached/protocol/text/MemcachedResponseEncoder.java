@@ -4,6 +4,7 @@ import static com.thimbleware.jmemcached.protocol.text.MemcachedPipelineFactory.
 import static java.lang.String.valueOf;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.util.Map;
 import java.util.Set;
@@ -11,6 +12,8 @@ import java.util.Set;
 import org.jboss.netty.buffer.ChannelBuffer;
 import org.jboss.netty.buffer.ChannelBuffers;
 import org.jboss.netty.channel.Channel;
+import org.jboss.netty.channel.ChannelFuture;
+import org.jboss.netty.channel.ChannelFutureListener;
 import org.jboss.netty.channel.ChannelHandlerContext;
 import org.jboss.netty.channel.Channels;
 import org.jboss.netty.channel.ExceptionEvent;
@@ -21,10 +24,12 @@ import org.slf4j.LoggerFactory;
 
 import com.thimbleware.jmemcached.Cache;
 import com.thimbleware.jmemcached.CacheElement;
+import com.thimbleware.jmemcached.LocalCacheElement;
 import com.thimbleware.jmemcached.StatsCounter;
 import com.thimbleware.jmemcached.protocol.Command;
 import com.thimbleware.jmemcached.protocol.ResponseMessage;
 import com.thimbleware.jmemcached.protocol.exceptions.ClientException;
+import com.thimbleware.jmemcached.protocol.exceptions.DatabaseException;
 
 /**
  * Response encoder for the memcached text protocol. Produces strings destined
@@ -45,6 +50,7 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 	private static final ChannelBuffer OK = ChannelBuffers.copiedBuffer("OK\r\n", USASCII);
 	private static final ChannelBuffer ERROR = ChannelBuffers.copiedBuffer("ERROR\r\n", USASCII);
 	private static final ChannelBuffer CLIENT_ERROR = ChannelBuffers.copiedBuffer("CLIENT_ERROR", USASCII);
+	private static final ChannelBuffer SERVER_ERROR = ChannelBuffers.copiedBuffer("SERVER_ERROR ", USASCII);
 	
 	/**
 	 * Handle exceptions in protocol processing. Exceptions are either client or
@@ -61,6 +67,10 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 		} catch (ClientException ce) {
 			if (ctx.getChannel().isOpen())
 				ctx.getChannel().write(ChannelBuffers.wrappedBuffer(CLIENT_ERROR.array(), ce.getMessage().getBytes(), CRLF.array()));
+		} catch (DatabaseException de) {
+			// 存储拒绝写入，例如超过队列的限额
+			if (ctx.getChannel().isOpen())
+				ctx.getChannel().write(ChannelBuffers.wrappedBuffer(SERVER_ERROR.array(), String.valueOf(de.getMessage()).getBytes(), CRLF.array()));
 		} catch (ClosedChannelException e2) {
 			logger.info("ClosedChannelException" + e.getChannel().getRemoteAddress());
 			if (ctx.getChannel().isOpen()) {
@@ -105,16 +115,23 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 				}
 			}
 			ChannelBuffer writeBuffer = ChannelBuffers.dynamicBuffer(totalBytes);
-
-			for (CacheElement result : results) {
-				if (result != null) {
+			long bytes = 0;
+			// 直接引用的数据交给写操作之后由写操作完成时释放，写操作完成包括失败和连接关闭；
+			// 编码出错时还没有交给写操作的数据由finally释放
+			int sent = 0;
+			try {
+				for (int i = 0; i < results.length; i++) {
+					sent = i;
+					CacheElement result = results[i];
+					if (result == null) {
+						continue;
+					}
 					writeBuffer.writeBytes(VALUE.duplicate());
 					writeBuffer.writeBytes(ChannelBuffers.copiedBuffer(result.getKeystring(), USASCII));
 					writeBuffer.writeByte((byte) ' ');
 					writeBuffer.writeBytes(ChannelBuffers.copiedBuffer(String.valueOf(result.getFlags()), USASCII));
 					writeBuffer.writeByte((byte) ' ');
-					writeBuffer.writeBytes(ChannelBuffers
-							.copiedBuffer(String.valueOf(result.getData().length), USASCII));
+					writeBuffer.writeBytes(ChannelBuffers.copiedBuffer(String.valueOf(result.size()), USASCII));
 					if (cmd == Command.GETS) {
 						writeBuffer.writeByte((byte) ' ');
 						writeBuffer.writeBytes(ChannelBuffers.copiedBuffer(String.valueOf(result.getCasUnique()),
@@ -122,13 +139,38 @@ public final class MemcachedResponseEncoder<CACHE_ELEMENT extends CacheElement>
 					}
 					writeBuffer.writeByte((byte) '\r');
 					writeBuffer.writeByte((byte) '\n');
-					writeBuffer.writeBytes(result.getData());
+					ByteBuffer direct = result instanceof LocalCacheElement ? ((LocalCacheElement) result).getBuffer()
+							: null;
+					if (direct != null) {
+						// 直接引用的数据单独写出，不复制到writeBuffer，写完之后释放
+						bytes += writeBuffer.writerIndex() + direct.remaining();
+						Channels.write(channel, writeBuffer);
+						final LocalCacheElement element = (LocalCacheElement) result;
+						Channels.write(channel, ChannelBuffers.wrappedBuffer(direct)).addListener(
+								new ChannelFutureListener() {
+									@Override
+									public void operationComplete(ChannelFuture future) {
+										element.release();
+									}
+								});
+						sent = i + 1;
+						writeBuffer = ChannelBuffers.dynamicBuffer(totalBytes);
+					} else {
+						writeBuffer.writeBytes(result.getData());
+					}
 					writeBuffer.writeByte((byte) '\r');
 					writeBuffer.writeByte((byte) '\n');
 				}
+				sent = results.length;
+			} finally {
+				for (int i = sent; i < results.length; i++) {
+					if (results[i] instanceof LocalCacheElement) {
+						((LocalCacheElement) results[i]).release();
+					}
+				}
 			}
 			writeBuffer.writeBytes(END.duplicate());
-			StatsCounter.bytes_read.addAndGet(writeBuffer.writerIndex());
+			StatsCounter.bytes_read.addAndGet(bytes + writeBuffer.writerIndex());
 			Channels.write(channel, writeBuffer);
 		} else if (cmd == Command.SET || cmd == Command.CAS || cmd == Command.ADD || cmd == Command.REPLACE
 				|| cmd == Command.APPEND || cmd == Command.PREPEND) {
@@ -15,11 +15,31 @@
  */
 package com.google.code.fqueue;
 
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import com.google.code.fqueue.exception.FileFormatException;
+import com.google.code.fqueue.log.Codec;
+import com.google.code.fqueue.log.FileRunner;
+import com.google.code.fqueue.log.FlushScheduler;
+import com.google.code.fqueue.log.FlushStatistics;
+import com.google.code.fqueue.log.HotTail;
+import com.google.code.fqueue.log.LogEntity;
+import com.google.code.fqueue.log.LogIndex;
+import com.google.code.fqueue.log.QuotaPolicy;
+import com.google.code.fqueue.log.RetentionPolicy;
+import com.google.code.fqueue.log.SegmentBuffer;
+import com.google.code.fqueue.log.SyncPolicy;
+import com.google.code.fqueue.log.TransitionStatistics;
+
 /**
  * @author sunli
  * @date 2010-8-13
@@ -47,6 +67,19 @@ public class FSQueueTest extends TestCase {
         super.tearDown();
     }
 
+    /**
+     * 删除目录中已有的文件，用于需要从空目录开始的测试
+     */
+    private static File emptyDir(String path) {
+        File dir = new File(path);
+        dir.mkdirs();
+        File[] files = dir.listFiles();
+        for (int i = 0; i < files.length; i++) {
+            files[i].delete();
+        }
+        return dir;
+    }
+
     public void tesssstCrash() {
         queue.offer("testqueueoffer".getBytes());
         System.exit(9);
@@ -111,6 +144,947 @@ public class FSQueueTest extends TestCase {
         assertNull(queue.poll());
     }
 
+    public void testOfferAll() throws Exception {
+        // 1M的数据文件，保证批量写入过程中发生文件滚动
+        FQueue batchQueue = new FQueue("dbbatch", 1024 * 1024);
+        batchQueue.clear();
+        StringBuffer sBuffer = new StringBuffer(1024);
+        for (int i = 0; i < 1024; i++) {
+            sBuffer.append("a");
+        }
+        String string = sBuffer.toString();
+        List<byte[]> batch = new ArrayList<byte[]>();
+        for (int i = 0; i < 5000; i++) {
+            batch.add((string + i).getBytes());
+            if (batch.size() == 1000) {
+                assertTrue(batchQueue.offerAll(batch));
+                batch.clear();
+            }
+        }
+        assertEquals(5000, batchQueue.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(string + i, new String(batchQueue.poll()));
+        }
+        assertNull(batchQueue.poll());
+        assertEquals(0, batchQueue.size());
+        // 空的批量直接返回，含有null的批量在写入之前被拒绝
+        assertTrue(batchQueue.offerAll(new ArrayList<byte[]>()));
+        batch.clear();
+        batch.add("a".getBytes());
+        batch.add(null);
+        try {
+            batchQueue.offerAll(batch);
+            fail();
+        } catch (NullPointerException e) {
+        }
+        assertEquals(0, batchQueue.size());
+        // 整批数据的字节数超过按字节数限制的容量时不写入
+        batchQueue.setCapacityBytes(4096);
+        batch.clear();
+        for (int i = 0; i < 4; i++) {
+            batch.add(new byte[1024]);
+        }
+        assertFalse(batchQueue.offerAll(batch));
+        assertEquals(0, batchQueue.size());
+        batch.remove(0);
+        assertTrue(batchQueue.offerAll(batch));
+        assertEquals(3, batchQueue.size());
+        batchQueue.close();
+    }
+
+    public void testDrainTo() throws Exception {
+        FQueue batchQueue = new FQueue("dbbatch", 1024 * 1024);
+        batchQueue.clear();
+        StringBuffer sBuffer = new StringBuffer(1024);
+        for (int i = 0; i < 1024; i++) {
+            sBuffer.append("a");
+        }
+        String string = sBuffer.toString();
+        for (int i = 0; i < 5000; i++) {
+            batchQueue.offer((string + i).getBytes());
+        }
+        List<byte[]> list = new ArrayList<byte[]>();
+        int n = batchQueue.drainTo(list, 10, Integer.MAX_VALUE);
+        assertEquals(10, n);
+        // 字节数限制，达到限制后停止
+        n = batchQueue.drainTo(list, Integer.MAX_VALUE, 4096);
+        assertEquals(4, n);
+        while (batchQueue.drainTo(list, 300, 1024 * 1024) > 0) {
+        }
+        assertEquals(5000, list.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(string + i, new String(list.get(i)));
+        }
+        assertEquals(0, batchQueue.size());
+        assertNull(batchQueue.poll());
+        batchQueue.close();
+    }
+
+    public void testConcurrentOfferPoll() throws Exception {
+        // 小文件频繁滚动，读线程经常和写线程共用同一个文件
+        final FQueue concurrentQueue = new FQueue("dbconcurrent", 64 * 1024);
+        concurrentQueue.clear();
+        final int total = 200000;
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < total; i++) {
+                    concurrentQueue.offer(("message" + i).getBytes());
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < total; i++) {
+            byte[] b = concurrentQueue.poll();
+            if (b == null) {
+                i--;
+                continue;
+            }
+            assertEquals("message" + i, new String(b));
+        }
+        producer.join();
+        assertEquals(0, concurrentQueue.size());
+        concurrentQueue.close();
+    }
+
+    public void testBlockingPutTake() throws Exception {
+        final FQueue blockingQueue = new FQueue("dbblocking", 64 * 1024);
+        blockingQueue.clear();
+        blockingQueue.setCapacity(100);
+        assertNull(blockingQueue.poll(10, TimeUnit.MILLISECONDS));
+        final int total = 20000;
+        Thread producer = new Thread() {
+            public void run() {
+                try {
+                    for (int i = 0; i < total; i++) {
+                        blockingQueue.put(("message" + i).getBytes());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < total; i++) {
+            assertTrue(blockingQueue.size() <= 100);
+            assertEquals("message" + i, new String(blockingQueue.take()));
+        }
+        producer.join();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(blockingQueue.offer(("message" + i).getBytes()));
+        }
+        assertEquals(0, blockingQueue.remainingCapacity());
+        assertFalse(blockingQueue.offer("full".getBytes()));
+        assertFalse(blockingQueue.offer("full".getBytes(), 10, TimeUnit.MILLISECONDS));
+        List<byte[]> list = new ArrayList<byte[]>();
+        assertEquals(100, blockingQueue.drainTo(list));
+        assertEquals(0, blockingQueue.size());
+        blockingQueue.close();
+    }
+
+    public void testSyncPolicy() throws Exception {
+        assertEquals(SyncPolicy.Mode.INTERVAL, SyncPolicy.parse(null).getMode());
+        assertEquals(SyncPolicy.Mode.OS, SyncPolicy.parse("os").getMode());
+        assertEquals(100, SyncPolicy.parse("records:100").getValue());
+        assertEquals("bytes:4096", SyncPolicy.parse(" BYTES : 4096 ").toString());
+        try {
+            SyncPolicy.parse("records");
+            fail();
+        } catch (IllegalArgumentException e) {
+        }
+        SyncPolicy[] policies = new SyncPolicy[] { SyncPolicy.os(), SyncPolicy.sync(), SyncPolicy.records(10),
+                SyncPolicy.bytes(1024) };
+        for (int p = 0; p < policies.length; p++) {
+            FQueue syncQueue = new FQueue("dbsync", 64 * 1024, policies[p]);
+            syncQueue.clear();
+            for (int i = 0; i < 5000; i++) {
+                assertTrue(syncQueue.offer(("message" + i).getBytes()));
+            }
+            for (int i = 0; i < 5000; i++) {
+                assertEquals("message" + i, new String(syncQueue.poll()));
+            }
+            assertEquals(0, syncQueue.size());
+            syncQueue.close();
+        }
+    }
+
+    public void testSharedFlushThreads() throws Exception {
+        FQueue[] queues = new FQueue[20];
+        long count = FlushStatistics.getFlushCount();
+        long bytes = FlushStatistics.getFlushBytes();
+        for (int i = 0; i < queues.length; i++) {
+            // 默认按时间间隔刷盘
+            queues[i] = new FQueue("dbthreads/queue" + i, 64 * 1024);
+            queues[i].clear();
+            for (int j = 0; j < 2000; j++) {
+                queues[i].offer(("message" + j).getBytes());
+            }
+        }
+        // 每个队列写入的数据都由共用的刷盘线程按时间间隔刷盘，每条数据至少17个字节
+        long deadline = System.currentTimeMillis() + 5000;
+        while (FlushStatistics.getFlushBytes() - bytes < queues.length * 2000 * 17
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(FlushStatistics.getFlushCount() - count >= queues.length);
+        assertTrue(FlushStatistics.getFlushBytes() - bytes >= queues.length * 2000 * 17);
+        // 刷盘线程数不随队列数量增长
+        int flushThreads = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith("fqueue-flush-")) {
+                flushThreads++;
+            }
+        }
+        assertTrue(flushThreads <= FlushScheduler.getThreadCount());
+        for (int i = 0; i < queues.length; i++) {
+            for (int j = 0; j < 2000; j++) {
+                assertEquals("message" + j, new String(queues[i].poll()));
+            }
+            queues[i].close();
+        }
+    }
+
+    public void testFlushStatistics() throws Exception {
+        FQueue syncQueue = new FQueue("dbsync", 1024 * 1024, SyncPolicy.records(100));
+        syncQueue.clear();
+        long count = FlushStatistics.getFlushCount();
+        long bytes = FlushStatistics.getFlushBytes();
+        for (int i = 0; i < 1000; i++) {
+            syncQueue.offer("1234567890".getBytes());
+        }
+        // 每100条刷盘一次，只刷新写入的部分
+        assertTrue(FlushStatistics.getFlushCount() - count >= 10);
+        assertTrue(FlushStatistics.getFlushBytes() - bytes >= 1000 * 14);
+        assertTrue(FlushStatistics.getFlushBytes() - bytes < 1024 * 1024);
+        assertEquals(1000, syncQueue.size());
+        syncQueue.clear();
+        syncQueue.close();
+    }
+
+    public void testDurableGroupCommit() throws Exception {
+        // 只有持久化模式会刷盘
+        final FQueue durableQueue = new FQueue("dbdurable", 64 * 1024, SyncPolicy.os());
+        durableQueue.clear();
+        durableQueue.setDurable(true);
+        long count = FlushStatistics.getFlushCount();
+        long bytes = FlushStatistics.getFlushBytes();
+        Thread[] producers = new Thread[8];
+        for (int i = 0; i < producers.length; i++) {
+            producers[i] = new Thread() {
+                public void run() {
+                    for (int j = 0; j < 500; j++) {
+                        durableQueue.offer("1234567890".getBytes());
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        for (int i = 0; i < producers.length; i++) {
+            producers[i].join();
+        }
+        assertEquals(4000, durableQueue.size());
+        // 返回之前所有数据都已经刷盘，每条数据10个字节加上头部
+        assertTrue(FlushStatistics.getFlushBytes() - bytes >= 4000 * (10 + LogEntity.RECORD_HEADER_LENGTH));
+        // 并发写入共用刷盘，刷盘次数明显少于写入的条数
+        assertTrue(FlushStatistics.getFlushCount() - count < 4000 / 2);
+        durableQueue.clear();
+        durableQueue.close();
+    }
+
+    public void testChecksum() throws Exception {
+        emptyDir("dbcrc");
+        FQueue crcQueue = new FQueue("dbcrc", 64 * 1024);
+        for (int i = 0; i < 10; i++) {
+            crcQueue.offer(("message" + i).getBytes());
+        }
+        crcQueue.close();
+        // 修改第6条数据的内容
+        int fileNumber = new LogIndex("dbcrc/icqueue.db").getWriterIndex();
+        RandomAccessFile raFile = new RandomAccessFile("dbcrc/fqueuedata_" + fileNumber + ".idb", "rw");
+        raFile.seek(LogEntity.HEADER_LENGTH + 5 * (LogEntity.RECORD_HEADER_LENGTH + 8)
+                + LogEntity.RECORD_HEADER_LENGTH);
+        raFile.write('x');
+        raFile.close();
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        for (int i = 0; i < 5; i++) {
+            assertEquals("message" + i, new String(crcQueue.poll()));
+        }
+        // 损坏的数据和之后的数据被跳过，跳过的部分计入已读
+        assertNull(crcQueue.poll());
+        assertEquals(0, crcQueue.size());
+        assertEquals(0, crcQueue.sizeInBytes());
+        assertEquals(10, crcQueue.getReadSequence());
+        crcQueue.offer("next".getBytes());
+        assertEquals("next", new String(crcQueue.poll()));
+        crcQueue.close();
+        // 正在写入的文件中之后还有稀疏索引项时，跳到索引项的位置，跳过的条数由序号得到
+        emptyDir("dbcrc");
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        for (int i = 0; i < 2000; i++) {
+            crcQueue.offer(("message" + i).getBytes());
+        }
+        crcQueue.close();
+        fileNumber = new LogIndex("dbcrc/icqueue.db").getWriterIndex();
+        raFile = new RandomAccessFile("dbcrc/fqueuedata_" + fileNumber + ".idb", "rw");
+        raFile.seek(LogEntity.HEADER_LENGTH + LogEntity.RECORD_HEADER_LENGTH);
+        raFile.write('x');
+        raFile.close();
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        byte[] b = crcQueue.poll();
+        assertTrue(crcQueue.getReadSequence() > 1 && crcQueue.getReadSequence() < 2000);
+        assertEquals("message" + (crcQueue.getReadSequence() - 1), new String(b));
+        assertEquals(2000 - crcQueue.getReadSequence(), crcQueue.size());
+        crcQueue.close();
+        // 写满的文件中的数据损坏时，跳过文件中剩余的数据，读序号和之后读到的数据的序号一致
+        emptyDir("dbcrc");
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            crcQueue.offer(("message" + i).getBytes());
+        }
+        crcQueue.close();
+        raFile = new RandomAccessFile("dbcrc/fqueuedata_1.idb", "rw");
+        raFile.seek(LogEntity.HEADER_LENGTH + LogEntity.RECORD_HEADER_LENGTH);
+        raFile.write('x');
+        raFile.close();
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        b = crcQueue.poll();
+        assertTrue(crcQueue.getReadSequence() > 1);
+        assertEquals("message" + (crcQueue.getReadSequence() - 1), new String(b));
+        assertEquals(10000 - crcQueue.getReadSequence(), crcQueue.size());
+        while (crcQueue.poll() != null) {
+        }
+        assertEquals(0, crcQueue.size());
+        assertEquals(0, crcQueue.sizeInBytes());
+        crcQueue.close();
+    }
+
+    public void testUndecodableRecord() throws Exception {
+        emptyDir("dbcrc");
+        FQueue crcQueue = new FQueue("dbcrc", 64 * 1024);
+        FSQueue.Consumer consumer = crcQueue.openConsumer("first");
+        for (int i = 0; i < 10; i++) {
+            crcQueue.offer(("message" + i).getBytes());
+        }
+        crcQueue.close();
+        // 把第6条数据标记为未知的压缩方式，并重新计算校验值
+        int fileNumber = new LogIndex("dbcrc/icqueue.db").getWriterIndex();
+        RandomAccessFile raFile = new RandomAccessFile("dbcrc/fqueuedata_" + fileNumber + ".idb", "rw");
+        long position = LogEntity.HEADER_LENGTH + 5 * (LogEntity.RECORD_HEADER_LENGTH + 8);
+        byte attributes = (byte) Codec.MASK;
+        java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+        crc.update(new byte[] { (byte) (fileNumber >>> 24), (byte) (fileNumber >>> 16), (byte) (fileNumber >>> 8),
+                (byte) fileNumber, 0, 0, 0, 8, attributes });
+        crc.update("message5".getBytes());
+        raFile.seek(position + 4);
+        raFile.write(attributes);
+        raFile.writeInt((int) crc.getValue());
+        raFile.close();
+        crcQueue = new FQueue("dbcrc", 64 * 1024);
+        // 无法解压的数据被跳过并计入已读，之后的数据照常读取
+        for (int i = 0; i < 10; i++) {
+            if (i != 5) {
+                assertEquals("message" + i, new String(crcQueue.poll()));
+            }
+        }
+        assertNull(crcQueue.poll());
+        assertEquals(0, crcQueue.size());
+        assertEquals(0, crcQueue.sizeInBytes());
+        assertEquals(10, crcQueue.getReadSequence());
+        consumer = crcQueue.openConsumer("first");
+        for (int i = 0; i < 10; i++) {
+            if (i != 5) {
+                assertEquals("message" + i, new String(consumer.poll()));
+            }
+        }
+        assertNull(consumer.poll());
+        assertEquals(0, consumer.size());
+        crcQueue.close();
+    }
+
+    public void testReadVersion1Segment() throws Exception {
+        File dir = emptyDir("dbv1");
+        RandomAccessFile raFile = new RandomAccessFile(new File(dir, "fqueuedata_1.idb"), "rw");
+        raFile.write(LogEntity.MAGIC.getBytes());
+        raFile.writeInt(1);
+        raFile.writeInt(-1);
+        raFile.writeInt(-1);
+        for (int i = 0; i < 100; i++) {
+            byte[] b = ("message" + i).getBytes();
+            raFile.writeInt(b.length);
+            raFile.write(b);
+        }
+        int end = (int) raFile.getFilePointer();
+        raFile.close();
+        LogIndex index = new LogIndex("dbv1/icqueue.db");
+        index.putWriterPosition(end);
+        index.addWriteCount(100, end - LogEntity.messageStartPosition);
+        index.close();
+        FQueue v1Queue = new FQueue("dbv1", 64 * 1024);
+        assertEquals(100, v1Queue.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("message" + i, new String(v1Queue.poll()));
+        }
+        assertNull(v1Queue.poll());
+        // 旧格式的文件写满后，新文件使用新格式
+        for (int i = 0; i < 10000; i++) {
+            v1Queue.offer(("message" + i).getBytes());
+        }
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("message" + i, new String(v1Queue.poll()));
+        }
+        assertEquals(0, v1Queue.size());
+        v1Queue.close();
+        // 更高版本的索引文件拒绝打开
+        raFile = new RandomAccessFile(new File(dir, "icqueue.db"), "rw");
+        raFile.seek(LogEntity.MAGIC.length());
+        raFile.writeInt(LogIndex.VERSION + 1);
+        raFile.close();
+        try {
+            new LogIndex("dbv1/icqueue.db");
+            fail("newer index version opened");
+        } catch (FileFormatException e) {
+        }
+    }
+
+    public void testRecover() throws Exception {
+        emptyDir("dbrecover");
+        // 不主动刷盘，也不调用close，模拟进程崩溃时还没有刷盘的状态
+        FQueue recoverQueue = new FQueue("dbrecover", 64 * 1024, SyncPolicy.os());
+        for (int i = 0; i < 100; i++) {
+            recoverQueue.offer(("message" + i).getBytes());
+        }
+        assertEquals("message0", new String(recoverQueue.poll()));
+        // 最后一条数据没有完整写入，索引中的写位置和条数已经更新
+        LogIndex index = new LogIndex("dbrecover/icqueue.db");
+        int fileNumber = index.getWriterIndex();
+        long end = index.getWriterPosition();
+        RandomAccessFile raFile = new RandomAccessFile("dbrecover/fqueuedata_" + fileNumber + ".idb", "rw");
+        raFile.seek(end - 1);
+        raFile.write(0);
+        raFile.close();
+        recoverQueue = new FQueue("dbrecover", 64 * 1024, SyncPolicy.os());
+        assertEquals(98, recoverQueue.size());
+        recoverQueue.offer("next".getBytes());
+        for (int i = 1; i < 99; i++) {
+            assertEquals("message" + i, new String(recoverQueue.poll()));
+        }
+        assertEquals("next", new String(recoverQueue.poll()));
+        assertEquals(0, recoverQueue.size());
+        // 数据已经写入，索引中的写位置和条数落后
+        for (int i = 0; i < 10; i++) {
+            recoverQueue.offer(("message" + i).getBytes());
+        }
+        index = new LogIndex("dbrecover/icqueue.db");
+        index.putWriterPosition(index.getWriterPosition() - 5 * (LogEntity.RECORD_HEADER_LENGTH + 8));
+        index.addWriteCount(-5, 0);
+        recoverQueue = new FQueue("dbrecover", 64 * 1024, SyncPolicy.os());
+        assertEquals(10, recoverQueue.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals("message" + i, new String(recoverQueue.poll()));
+        }
+        recoverQueue.close();
+    }
+
+    public void testPeekAndIterator() throws Exception {
+        emptyDir("dbpeek");
+        FQueue peekQueue = new FQueue("dbpeek", 64 * 1024);
+        assertNull(peekQueue.peek());
+        assertFalse(peekQueue.iterator().hasNext());
+        // 跨越多个文件
+        for (int i = 0; i < 10000; i++) {
+            peekQueue.offer(("message" + i).getBytes());
+        }
+        for (int i = 0; i < 100; i++) {
+            peekQueue.poll();
+        }
+        assertEquals("message100", new String(peekQueue.peek()));
+        assertEquals(9900, peekQueue.size());
+        Iterator<byte[]> iterator = peekQueue.iterator();
+        // 遍历期间的读取不影响遍历
+        assertEquals("message100", new String(peekQueue.poll()));
+        int i = 100;
+        while (iterator.hasNext()) {
+            assertEquals("message" + i, new String(iterator.next()));
+            i++;
+        }
+        assertEquals(10000, i);
+        assertEquals("message101", new String(peekQueue.peek()));
+        assertEquals(9899, peekQueue.size());
+        peekQueue.close();
+    }
+
+    public void testConsumers() throws Exception {
+        File dir = emptyDir("dbconsumer");
+        FQueue fanout = new FQueue("dbconsumer", 64 * 1024);
+        FSQueue.Consumer first = fanout.openConsumer("first");
+        for (int i = 0; i < 10000; i++) {
+            fanout.offer(("message" + i).getBytes());
+        }
+        FSQueue.Consumer second = fanout.openConsumer("second");
+        assertEquals(10000, first.size());
+        // 队列本身读完之后，消费者还没有读取的文件不会被删除
+        for (int i = 0; i < 10000; i++) {
+            assertEquals("message" + i, new String(fanout.poll()));
+        }
+        // 文件没有交给FileRunner删除，消费者之后仍然可以从第一个文件读取
+        assertTrue(new File(dir, "fqueuedata_1.idb").exists());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("message" + i, new String(first.poll()));
+        }
+        assertEquals("message0", new String(second.peek()));
+        assertEquals("message0", new String(second.poll()));
+        fanout.close();
+        // 重新打开后消费者从各自的位置继续
+        fanout = new FQueue("dbconsumer", 64 * 1024);
+        first = fanout.openConsumer("first");
+        second = fanout.openConsumer("second");
+        assertEquals(5000, first.size());
+        for (int i = 5000; i < 10000; i++) {
+            assertEquals("message" + i, new String(first.poll()));
+        }
+        assertNull(first.poll());
+        fanout.offer("next".getBytes());
+        assertEquals("next", new String(first.poll()));
+        // 删除消费者后，所有人都读完的文件被删除
+        fanout.removeConsumer("second");
+        for (int i = 0; i < 100 && new File(dir, "fqueuedata_1.idb").exists(); i++) {
+            Thread.sleep(50);
+        }
+        assertFalse(new File(dir, "fqueuedata_1.idb").exists());
+        assertFalse(new File(dir, "consumer_second.db").exists());
+        fanout.close();
+    }
+
+    public void testLeases() throws Exception {
+        emptyDir("dblease");
+        FQueue queue = new FQueue("dblease", 64 * 1024);
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        FSQueue.Lease first = queue.reserve(50, TimeUnit.MILLISECONDS);
+        FSQueue.Lease second = queue.reserve(10, TimeUnit.SECONDS);
+        assertEquals("message0", new String(first.getData()));
+        assertEquals("message1", new String(second.getData()));
+        // 后面的确认不推进读位置
+        assertTrue(queue.ack(second.getToken()));
+        assertFalse(queue.ack(second.getToken()));
+        assertEquals(5000, queue.size());
+        Thread.sleep(100);
+        // 超时的预留重新投递，普通的读取跳过预留中的数据
+        FSQueue.Lease again = queue.reserve(10, TimeUnit.SECONDS);
+        assertEquals(first.getToken(), again.getToken());
+        assertEquals(2, again.getDeliveries());
+        assertEquals("message2", new String(queue.poll()));
+        assertEquals(5000, queue.size());
+        assertTrue(queue.ack(again.getToken()));
+        assertEquals(4997, queue.size());
+        // 没有确认的数据重启之后重新投递
+        List<Long> tokens = new ArrayList<Long>();
+        for (int i = 3; i < 5000; i++) {
+            FSQueue.Lease lease = queue.reserve(10, TimeUnit.SECONDS);
+            assertEquals("message" + i, new String(lease.getData()));
+            tokens.add(lease.getToken());
+        }
+        assertNull(queue.reserve(10, TimeUnit.SECONDS));
+        for (int i = 1; i < tokens.size(); i++) {
+            assertTrue(queue.ack(tokens.get(i)));
+        }
+        assertEquals(4997, queue.size());
+        queue.close();
+        queue = new FQueue("dblease", 64 * 1024);
+        assertEquals(4997, queue.size());
+        assertEquals("message3", new String(queue.poll()));
+        assertEquals(4996, queue.size());
+        queue.close();
+    }
+
+    public void testSeek() throws Exception {
+        File dir = emptyDir("dbseek");
+        FQueue queue = new FQueue("dbseek", 64 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        assertTrue(new File(dir, "fqueuedata_1.sidx").length() > 0);
+        long bytes = queue.sizeInBytes();
+        for (int i = 0; i < 100; i++) {
+            queue.poll();
+        }
+        // 向前移动重新读取
+        assertTrue(queue.seek(50));
+        assertEquals(50, queue.getReadSequence());
+        assertEquals(9950, queue.size());
+        assertEquals("message50", new String(queue.poll()));
+        assertTrue(queue.seek(0));
+        assertEquals(bytes, queue.sizeInBytes());
+        // 向后跳过，跨越多个文件
+        assertTrue(queue.seek(7000));
+        assertEquals(3000, queue.size());
+        assertEquals("message7000", new String(queue.poll()));
+        // 跳过的文件已经删除，不能再回到那里
+        Thread.sleep(100);
+        assertFalse(queue.seek(10));
+        assertFalse(queue.seek(10001));
+        assertTrue(queue.seek(10000));
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.sizeInBytes());
+        assertTrue(queue.seek(9990));
+        queue.close();
+        queue = new FQueue("dbseek", 64 * 1024);
+        assertEquals(10, queue.size());
+        assertEquals("message9990", new String(queue.poll()));
+        queue.close();
+        // 备用位置已经完整记录、读文件还没有修改时退出，启动时按备用位置完成修改
+        LogIndex db = new LogIndex(new File(dir, "icqueue.db").getPath());
+        int readerIndex = db.getReaderIndex();
+        long readerPosition = db.getReaderPosition();
+        db.close();
+        RandomAccessFile raFile = new RandomAccessFile(new File(dir, "icqueue.db"), "rw");
+        raFile.seek(128);
+        raFile.writeInt(readerIndex - 1);
+        raFile.seek(160);
+        raFile.writeInt(readerIndex);
+        raFile.writeInt(readerIndex);
+        raFile.writeLong(readerPosition);
+        raFile.close();
+        queue = new FQueue("dbseek", 64 * 1024);
+        assertEquals(9, queue.size());
+        assertEquals("message9991", new String(queue.poll()));
+        queue.close();
+    }
+
+    public void testRetention() throws Exception {
+        File dir = emptyDir("dbretention");
+        FQueue queue = new FQueue("dbretention", 64 * 1024);
+        queue.setRetentionPolicy(RetentionPolicy.parse("bytes:10485760"));
+        for (int i = 0; i < 10000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        for (int i = 0; i < 10000; i++) {
+            queue.poll();
+        }
+        Thread.sleep(100);
+        // 读完的文件被保留，重启之后仍然可以回到开头重新读取
+        assertTrue(new File(dir, "fqueuedata_1.idb").exists());
+        queue.close();
+        queue = new FQueue("dbretention", 64 * 1024);
+        queue.setRetentionPolicy(RetentionPolicy.parse("bytes:10485760"));
+        assertTrue(queue.seek(0));
+        assertEquals(10000, queue.size());
+        assertEquals("message0", new String(queue.poll()));
+        assertTrue(queue.seek(10000));
+        // 超过保留时间的文件由后台任务删除
+        queue.setRetentionPolicy(RetentionPolicy.parse("age:1"));
+        Thread.sleep(1500);
+        assertFalse(new File(dir, "fqueuedata_1.idb").exists());
+        assertFalse(new File(dir, "fqueuedata_1.sidx").exists());
+        assertFalse(queue.seek(0));
+        queue.close();
+    }
+
+    public void testClear() throws Exception {
+        File dir = emptyDir("dbclear");
+        FQueue queue = new FQueue("dbclear", 64 * 1024);
+        for (int i = 0; i < 10000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        queue.poll();
+        queue.clear();
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.sizeInBytes());
+        assertNull(queue.poll());
+        Thread.sleep(100);
+        assertFalse(new File(dir, "fqueuedata_1.idb").exists());
+        queue.offer("after".getBytes());
+        assertEquals(1, queue.size());
+        queue.close();
+        queue = new FQueue("dbclear", 64 * 1024);
+        assertEquals(1, queue.size());
+        assertEquals("after", new String(queue.poll()));
+        // 读文件和读位置已经移到写位置、计数还没有设置时退出，启动时按读位置重新统计，清空的数据不会重新出现
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        queue.close();
+        LogIndex db = new LogIndex(new File(dir, "icqueue.db").getPath());
+        db.putReader(db.getWriterIndex(), db.getWriterPosition());
+        db.close();
+        queue = new FQueue("dbclear", 64 * 1024);
+        assertEquals(0, queue.size());
+        assertEquals(0, queue.sizeInBytes());
+        assertNull(queue.poll());
+        queue.offer("after".getBytes());
+        assertEquals("after", new String(queue.poll()));
+        queue.close();
+    }
+
+    public void testQuota() throws Exception {
+        QuotaPolicy policy = QuotaPolicy.parse("bytes:2048,action:drop");
+        assertEquals(QuotaPolicy.Action.DROP, policy.getAction());
+        assertEquals("bytes:2048,action:drop", policy.toString());
+        assertEquals(QuotaPolicy.DEFAULT_TIMEOUT, QuotaPolicy.parse("bytes:1,action:block").getTimeout());
+        assertFalse(QuotaPolicy.parse("").isEnabled());
+        emptyDir("dbquota");
+        FQueue queue = new FQueue("dbquota", 64 * 1024);
+        queue.setQuotaPolicy(policy);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offerDropOldest(new byte[100]));
+        }
+        // 每条数据加上头部109个字节，写入后不超过2048字节，最多积压18条
+        assertEquals(18, queue.size());
+        assertEquals(18 * 109, queue.sizeInBytes());
+        assertEquals(82, queue.getDroppedCount());
+        assertFalse(queue.offer(new byte[100]));
+        // 数据本身超过限额时直接返回，不丢弃数据
+        assertFalse(queue.offerDropOldest(new byte[2048]));
+        assertEquals(18, queue.size());
+        assertEquals(82, queue.getDroppedCount());
+        assertFalse(queue.offer(new byte[2048], 10, TimeUnit.MILLISECONDS));
+        // 刚好放得下时写入
+        queue.poll();
+        assertTrue(queue.offer(new byte[2048 - 18 * 109 - 9 + 109]));
+        assertEquals(2048, queue.sizeInBytes());
+        queue.setQuotaPolicy(QuotaPolicy.NONE);
+        assertTrue(queue.offer(new byte[100]));
+        queue.close();
+    }
+
+    public void testSegmentRecycling() throws Exception {
+        File dir = emptyDir("dbrecycle");
+        FQueue queue = new FQueue("dbrecycle", 64 * 1024);
+        long recycled = FileRunner.getRecycledFiles();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 5000; i++) {
+                queue.offer(("message" + round + "_" + i).getBytes());
+            }
+            for (int i = 0; i < 5000; i++) {
+                assertEquals("message" + round + "_" + i, new String(queue.poll()));
+            }
+            Thread.sleep(100);
+        }
+        // 读完的文件改名为后续的文件，写文件之后总有准备好的文件
+        for (int i = 0; i < 100 && FileRunner.getRecycledFiles() == recycled; i++) {
+            Thread.sleep(50);
+        }
+        assertTrue(FileRunner.getRecycledFiles() > recycled);
+        assertFalse(new File(dir, "fqueuedata_1.idb").exists());
+        LogIndex db = new LogIndex(new File(dir, "icqueue.db").getPath());
+        int writerIndex = db.getWriterIndex();
+        db.close();
+        for (int i = 1; i <= FileRunner.DEFAULT_POOL_SIZE; i++) {
+            assertEquals(64 * 1024, new File(dir, "fqueuedata_" + (writerIndex + i) + ".idb").length());
+        }
+        // 回收的文件中残留的旧数据不会在恢复时被当成有效数据
+        for (int i = 0; i < 5000; i++) {
+            queue.offer(("again" + i).getBytes());
+        }
+        queue.close();
+        queue = new FQueue("dbrecycle", 64 * 1024);
+        assertEquals(5000, queue.size());
+        for (int i = 0; i < 5000; i++) {
+            assertEquals("again" + i, new String(queue.poll()));
+        }
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    public void testSegmentClaim() throws Exception {
+        File dir = emptyDir("dbclaim");
+        // 上次运行留下的备用文件在切换文件时直接改名接过来
+        RandomAccessFile raFile = new RandomAccessFile(new File(dir, "fqueuedata_1.spare"), "rw");
+        raFile.setLength(64 * 1024);
+        raFile.close();
+        FileRunner runner = new FileRunner(new File(dir, "fqueuedata_").getPath(), 64 * 1024);
+        assertTrue(runner.claim(5));
+        assertTrue(new File(dir, "fqueuedata_5.idb").exists());
+        assertFalse(new File(dir, "fqueuedata_1.spare").exists());
+        assertTrue(runner.claim(5));
+        assertFalse(runner.claim(6));
+        runner.exit();
+    }
+
+    public void testCodecs() throws Exception {
+        java.util.Random random = new java.util.Random(1);
+        for (int n = 0; n < 200; n++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            // 一部分随机数据，一部分重复数据
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) (i % 3 == 0 ? random.nextInt() : i % 7 + 'a');
+            }
+            Codec[] codecs = Codec.values();
+            for (int i = 0; i < codecs.length; i++) {
+                byte[] stored = codecs[i].encode(data);
+                byte attributes = stored == data ? 0 : codecs[i].getId();
+                assertTrue(Arrays.equals(data, Codec.decode(attributes, stored)));
+            }
+        }
+    }
+
+    public void testCompression() throws Exception {
+        emptyDir("dbcompress");
+        FQueue queue = new FQueue("dbcompress", 64 * 1024);
+        queue.setCodec(Codec.LZF);
+        long raw = 0;
+        for (int i = 0; i < 4000; i++) {
+            if (i == 2000) {
+                queue.setCodec(Codec.DEFLATE);
+            }
+            StringBuilder json = new StringBuilder("{\"id\":" + i + ",\"tags\":[");
+            for (int j = 0; j < 20; j++) {
+                json.append("\"queue\",");
+            }
+            byte[] message = json.append("\"end\"]}").toString().getBytes();
+            raw += message.length;
+            queue.offer(message);
+        }
+        assertTrue(queue.sizeInBytes() < raw);
+        Iterator<byte[]> iterator = queue.iterator();
+        assertTrue(new String(iterator.next()).startsWith("{\"id\":0,"));
+        for (int i = 0; i < 4000; i++) {
+            assertTrue(new String(queue.poll()).startsWith("{\"id\":" + i + ","));
+        }
+        assertTrue(Codec.getRatio() < 1);
+        queue.close();
+    }
+
+    public void testSlices() throws Exception {
+        emptyDir("dbslice");
+        FQueue queue = new FQueue("dbslice", 64 * 1024);
+        for (int i = 0; i < 200; i++) {
+            byte[] message = new byte[1000];
+            Arrays.fill(message, (byte) i);
+            queue.offer(message);
+        }
+        long open = SegmentBuffer.getOpenSlices();
+        SegmentBuffer.Slice first = queue.pollSlice();
+        assertEquals(open + 1, SegmentBuffer.getOpenSlices());
+        assertTrue(first.buffer().isReadOnly());
+        assertEquals(1000, first.length());
+        // 读完并删除第一个文件之后，没有释放的slice仍然可以读
+        for (int i = 1; i < 200; i++) {
+            SegmentBuffer.Slice slice = queue.pollSlice();
+            assertEquals((byte) i, slice.buffer().get(slice.buffer().position() + 999));
+            slice.release();
+            slice.release();
+        }
+        assertNull(queue.pollSlice());
+        byte[] expected = new byte[1000];
+        assertTrue(Arrays.equals(expected, first.toArray()));
+        first.release();
+        assertEquals(open, SegmentBuffer.getOpenSlices());
+        queue.close();
+    }
+
+    public void testSegmentBufferWindows() throws Exception {
+        File dir = emptyDir("dbwindow");
+        RandomAccessFile raFile = new RandomAccessFile(new File(dir, "segment"), "rw");
+        long windows = SegmentBuffer.getMappedWindows();
+        // 用很小的窗口模拟大文件，读写跨越多个窗口
+        SegmentBuffer buffer = new SegmentBuffer(raFile.getChannel(), 5 * 4096 + 100, 4096);
+        SegmentBuffer.Cursor writer = buffer.cursor();
+        writer.putInt(4094, 0x12345678);
+        writer.putLong(2 * 4096 - 3, Long.MAX_VALUE - 1);
+        byte[] data = new byte[3 * 4096];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        writer.put(4096 + 10, data, 0, data.length);
+        SegmentBuffer.Cursor reader = buffer.cursor();
+        assertEquals(0x12345678, reader.getInt(4094));
+        byte[] read = new byte[data.length];
+        reader.get(4096 + 10, read, 0, read.length);
+        assertTrue(Arrays.equals(data, read));
+        writer.putLong(5 * 4096 + 90, -2L);
+        assertEquals(-2L, reader.getLong(5 * 4096 + 90));
+        buffer.force(4000, 3 * 4096);
+        // 每个视图只保留当前位置所在的窗口，刷盘超过半个窗口时使用刷盘视图的窗口
+        assertEquals(windows + 3, SegmentBuffer.getMappedWindows());
+        // 同一个窗口内再次刷盘不重新映射
+        writer.putLong(2 * 4096 + 100, 1L);
+        long maps = SegmentBuffer.getMapCount();
+        buffer.force(2 * 4096, 3 * 4096);
+        buffer.force(2 * 4096 + 100, 2 * 4096 + 108);
+        assertEquals(maps, SegmentBuffer.getMapCount());
+        assertEquals(windows + 3, SegmentBuffer.getMappedWindows());
+        buffer.close();
+        assertEquals(windows, SegmentBuffer.getMappedWindows());
+        raFile.close();
+        assertEquals(5 * 4096 + 100, new File(dir, "segment").length());
+    }
+
+    public void testHotTail() throws Exception {
+        assertNull(HotTail.parse(""));
+        assertEquals("records:16,bytes:" + HotTail.DEFAULT_BYTES, HotTail.parse("records:16").toString());
+        emptyDir("dbhottail");
+        FQueue queue = new FQueue("dbhottail", 64 * 1024);
+        HotTail hotTail = HotTail.parse("records:16,bytes:4096");
+        queue.setHotTail(hotTail);
+        // 消费者跟得上时从内存读取，写入后修改数组不影响读到的数据
+        for (int i = 0; i < 5000; i++) {
+            byte[] b = ("message" + i).getBytes();
+            queue.offer(b);
+            b[0] = 'x';
+            assertEquals("message" + i, new String(queue.poll()));
+        }
+        assertTrue(hotTail.getHits() > 4900);
+        assertEquals(0, hotTail.getBytes());
+        // 落后超过环的大小时回到文件读取，顺序不变
+        for (int i = 0; i < 100; i++) {
+            queue.offer(("lag" + i).getBytes());
+        }
+        long misses = hotTail.getMisses();
+        for (int i = 0; i < 100; i++) {
+            assertEquals("lag" + i, new String(queue.poll()));
+        }
+        assertTrue(hotTail.getMisses() - misses >= 84);
+        // 从内存读取的数据同样推进文件中的读位置
+        for (int i = 0; i < 10; i++) {
+            queue.offer(("tail" + i).getBytes());
+        }
+        for (int i = 0; i < 5; i++) {
+            assertEquals("tail" + i, new String(queue.poll()));
+        }
+        assertEquals(5 * (5 + LogEntity.RECORD_HEADER_LENGTH), queue.sizeInBytes());
+        queue.close();
+        queue = new FQueue("dbhottail", 64 * 1024);
+        assertEquals(5, queue.size());
+        for (int i = 5; i < 10; i++) {
+            assertEquals("tail" + i, new String(queue.poll()));
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.sizeInBytes());
+        queue.close();
+    }
+
+    public void testReadAhead() throws Exception {
+        emptyDir("dbreadahead");
+        FQueue queue = new FQueue("dbreadahead", 64 * 1024);
+        for (int i = 0; i < 20000; i++) {
+            queue.offer(("message" + i).getBytes());
+        }
+        long transitions = TransitionStatistics.getTransitionCount();
+        long preopened = TransitionStatistics.getPreopenedCount();
+        long loaded = SegmentBuffer.getLoadedBytes();
+        // 读到写满的文件结尾附近时在后台打开下一个文件，切换时直接使用。预读线程由所有队列共用，
+        // 读取时留出间隔，让之前的测试留下的预读任务执行完
+        for (int i = 0; i < 15000; i++) {
+            assertEquals("message" + i, new String(queue.poll()));
+            if (i % 500 == 0) {
+                Thread.sleep(10);
+            }
+        }
+        assertTrue(TransitionStatistics.getTransitionCount() - transitions > 0);
+        assertTrue(TransitionStatistics.getPreopenedCount() - preopened > 0);
+        assertTrue(SegmentBuffer.getLoadedBytes() > loaded);
+        assertTrue(TransitionStatistics.getStats().indexOf("transitionsUnder10us:") > 0);
+        // 移动读位置时放弃已经打开的文件
+        assertTrue(queue.seek(16000));
+        assertEquals("message16000", new String(queue.poll()));
+        queue.clear();
+        assertNull(queue.poll());
+        queue.offer("after".getBytes());
+        assertEquals("after", new String(queue.poll()));
+        queue.close();
+    }
+
     public void testFqueueVSList() {
         String message = "1234567890";
         byte[] bytes = message.getBytes();
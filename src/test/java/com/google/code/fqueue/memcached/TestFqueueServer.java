@@ -25,6 +25,7 @@ import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
+import net.rubyeye.xmemcached.GetsResponse;
 import net.rubyeye.xmemcached.MemcachedClient;
 import net.rubyeye.xmemcached.MemcachedClientBuilder;
 import net.rubyeye.xmemcached.XMemcachedClientBuilder;
@@ -35,6 +36,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.log4j.PropertyConfigurator;
 
+import com.google.code.fqueue.log.LogEntity;
 import com.google.code.fqueue.util.Config;
 import com.google.code.yanf4j.core.impl.StandardSocketOption;
 
@@ -73,6 +75,7 @@ public class TestFqueueServer extends TestCase {
         Config.setSetting("path", "dbtest");
         Config.setSetting("logsize", "40");
         Config.setSetting("authorization", "key|abc@@bbs|pass");
+        Config.setSetting("quota.bbs", "bytes:1000");
         StartNewQueue.newQueueInstance(Integer.parseInt(Config.getSetting("port")));
         log.info("running at port " + Config.getSetting("port"));
         builder = new XMemcachedClientBuilder(AddrUtil.getAddresses("127.0.0.1:12001"));
@@ -125,11 +128,21 @@ public class TestFqueueServer extends TestCase {
         assertEquals(0, getSize());
         client.set(keyName, 0, "12345");
         assertEquals(1, getSize());
+        // peek不移除数据
+        assertEquals("12345", client.get("peek|key|abc"));
+        assertEquals(1, getSize());
         assertEquals("12345", client.get(keyName));
         assertEquals(0, getSize());
         client.set(keyName + "_" + System.currentTimeMillis(), 0, "12345");
         assertEquals(1, getSize());
         assertEquals("12345", client.get(keyName + "_" + System.currentTimeMillis()));
+        // gets预留数据，delete确认之后才移除
+        client.set(keyName, 0, "lease");
+        GetsResponse<String> reserved = client.gets("reserve|key|abc");
+        assertEquals("lease", reserved.getValue());
+        assertEquals(1, getSize());
+        assertTrue(client.delete(keyName + "_" + reserved.getCas()));
+        assertEquals(0, getSize());
         log.info("push 10000 items");
         long start = System.currentTimeMillis();
         // 测试顺序写入10000个数据，再按顺序取出来，是否正确
@@ -147,12 +160,32 @@ public class TestFqueueServer extends TestCase {
         assertEquals(0, getSize());
         log.info("开始测试权限状态");
         authorization();
+        quota();
         log.info("开始测试多线程操作");
         mutiThreadWrite();
         mutiThreadGet();
         assertEquals(0, getSize());
     }
 
+    public void quota() throws TimeoutException, InterruptedException, MemcachedException {
+        client.get("clear|bbs|pass");
+        int stored = 0;
+        try {
+            for (int i = 0; i < 100; i++) {
+                client.set("bbs_pass", 0, "0123456789012345678901234567890123456789");
+                stored++;
+            }
+            fail("quota not enforced");
+        } catch (MemcachedException e) {
+            assertEquals("queue quota exceeded", e.getMessage());
+        }
+        assertEquals(String.valueOf(stored), client.get("size|bbs"));
+        // 写入后不超过限额，再写入一条就会超过
+        long bytes = Long.parseLong((String) client.get("size|bbs|bytes"));
+        assertTrue(bytes <= 1000 && bytes + 40 + LogEntity.RECORD_HEADER_LENGTH > 1000);
+        client.get("clear|bbs|pass");
+    }
+
     public void mutiThreadWrite() throws InterruptedException, TimeoutException, MemcachedException {
         int threadCount = 8;
         ExecutorService pool = Executors.newFixedThreadPool(threadCount);